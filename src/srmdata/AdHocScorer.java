@@ -0,0 +1,156 @@
+package srmdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Scores documents that are not in any index against the train documents.
+ * The scoring fields of a document are analyzed with the analyzer of
+ * NSDLIndex into a single document MemoryIndex, and its terms are scored by
+ * the same SparseScorer of each field as CombinedScorer uses, so the setup of
+ * a query needs no disk I/O.
+ *
+ * An instance keeps one score array and is not thread safe.
+ */
+class AdHocScorer {
+
+	String[] fieldNames;
+	SparseScorer[] scorers;
+	double[] weights;
+	Analyzer analyzer;
+	double[] scores;
+
+	// time spent analyzing and looking up the terms of the last document
+	long setupNanos;
+
+	private AdHocScorer() {
+	}
+
+	/**
+	 * @param stats statistics of the fields in fieldNames
+	 */
+	AdHocScorer(IndexReader trainIR, String[] fieldNames, FieldStatistics[] stats, double[] weights) throws IOException {
+		this.fieldNames = fieldNames;
+		this.weights = weights;
+		this.scorers = new SparseScorer[stats.length];
+		for (int f = 0; f < stats.length; ++f)
+			scorers[f] = new SparseScorer(trainIR, stats[f], null);
+		this.analyzer = NSDLIndex.createAnalyzer();
+		this.scores = new double[trainIR.maxDoc()];
+	}
+
+	/**
+	 * A scorer for another thread, sharing the train side of this one
+	 */
+	AdHocScorer copy() {
+		AdHocScorer copy = new AdHocScorer();
+		copy.fieldNames = fieldNames;
+		copy.scorers = scorers;
+		copy.weights = weights;
+		copy.analyzer = NSDLIndex.createAnalyzer();
+		copy.scores = new double[scores.length];
+		return copy;
+	}
+
+	/**
+	 * Scorer of the scoring fields of predictFields over all documents of trainIR
+	 */
+	static AdHocScorer create(IndexReader trainIR) throws IOException {
+		String[] fieldNames = CombinedScorer.SCORING_FIELDS;
+		FieldStatistics[] stats = new FieldStatistics[fieldNames.length];
+		for (int f = 0; f < fieldNames.length; ++f)
+			stats[f] = FieldStatistics.compute(trainIR, fieldNames[f], null);
+		return new AdHocScorer(trainIR, fieldNames, stats, CombinedScorer.FIELD_WEIGHTS);
+	}
+
+	/**
+	 * Term ids of the document for every field, from the text of its (stored) fields
+	 */
+	int[][] queryTerms(Document doc) throws IOException {
+		MemoryIndex index = new MemoryIndex();
+		for (String fieldName : fieldNames) {
+			String[] values = doc.getValues(fieldName);
+			if (values.length == 0)
+				continue;
+			// a MemoryIndex takes every field once
+			StringBuilder text = new StringBuilder(values[0]);
+			for (int i = 1; i < values.length; ++i)
+				text.append(' ').append(values[i]);
+			index.addField(fieldName, text.toString(), analyzer);
+		}
+		IndexReader reader = index.createSearcher().getIndexReader();
+		int[][] queryTerms = new int[fieldNames.length][];
+		for (int f = 0; f < fieldNames.length; ++f)
+			queryTerms[f] = SparseScorer.queryTerms(reader, scorers[f].stats)[0];
+		reader.close();
+		return queryTerms;
+	}
+
+	/**
+	 * @return the k train documents with the highest combined log score for the document
+	 */
+	Score[] topK(Document doc, int k) throws IOException {
+		long t1 = System.nanoTime();
+		int[][] queryTerms = queryTerms(doc);
+		setupNanos = System.nanoTime() - t1;
+
+		Arrays.fill(scores, 0.0);
+		for (int f = 0; f < scorers.length; ++f)
+			scorers[f].score(queryTerms[f], weights[f], scores);
+		return SparseScorer.selectTopK(scores, scorers[0].trainDocs, k);
+	}
+
+	/**
+	 * Score the stored documents of a test index through the in-memory path and
+	 * compare with CombinedScorer over the index itself.
+	 * AdHocScorer [trainIndex testIndex [k]]
+	 */
+	public static void main(String[] args) throws Exception {
+
+		String trainIndex = (args.length > 1) ? args[0] : MultiLabelClassificationNSDL.TRAIN_INDEX_NAME;
+		String testIndex = (args.length > 1) ? args[1] : MultiLabelClassificationNSDL.TEST_INDEX_NAME;
+		int k = (args.length > 2) ? Integer.parseInt(args[2]) : 500;
+
+		IndexReader trainIR = IndexReader.open(new RAMDirectory(FSDirectory.open(new File(trainIndex))), true);
+		IndexReader testIR = IndexReader.open(FSDirectory.open(new File(testIndex)), true);
+
+		AdHocScorer scorer = create(trainIR);
+		CombinedScorer reference = new CombinedScorer(trainIR, testIR, statsOf(scorer), scorer.weights, null);
+		long setupNanos = 0;
+		long totalNanos = 0;
+		int numDifferent = 0;
+		for (int i = 0; i < testIR.maxDoc(); ++i) {
+			Document doc = testIR.document(i);
+			long t1 = System.nanoTime();
+			Score[] topK = scorer.topK(doc, k);
+			totalNanos += System.nanoTime() - t1;
+			setupNanos += scorer.setupNanos;
+			Score[] expected = reference.topK(i, k);
+			if (CandidateGenerator.recall(topK, expected) < 1.0)
+				numDifferent++;
+		}
+		int n = testIR.maxDoc();
+		System.out.println("Documents: " + n + " average setup ms: " + setupNanos / 1E6 / n +
+				" average scoring ms: " + totalNanos / 1E6 / n + " top " + k + " different from index: " + numDifferent);
+
+		trainIR.close();
+		testIR.close();
+	}
+
+	private static FieldStatistics[] statsOf(AdHocScorer scorer) {
+		FieldStatistics[] stats = new FieldStatistics[scorer.scorers.length];
+		for (int f = 0; f < stats.length; ++f)
+			stats[f] = scorer.scorers[f].stats;
+		return stats;
+	}
+}
@@ -0,0 +1,88 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.util.OpenBitSet;
+
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Per test document, the union of the top L train documents of every field
+ * model together with the log score of each field for them. Any weighting of
+ * the fields and any topN up to L can be ranked from it without scoring the
+ * train documents again. A train document outside the top L of every field can
+ * still belong to the combined topN, so L should be a few times the largest topN.
+ */
+class CandidateCache {
+
+	int numFields;
+	int listSize;
+	// [test][i] train doc id of the i-th candidate, in increasing order
+	int[][] docIDs;
+	// [test][field][i] log score of the field model for the i-th candidate
+	double[][][] fieldScores;
+
+	/**
+	 * @param scorer field models to cache, its weights are not used
+	 * @param listSize number of top train documents kept per field (L)
+	 */
+	CandidateCache(CombinedScorer scorer, int listSize) throws IOException {
+
+		this.numFields = scorer.scorers.length;
+		this.listSize = listSize;
+		int nTestDocs = scorer.numTestDocs();
+		int maxDoc = scorer.scores.length;
+		this.docIDs = new int[nTestDocs][];
+		this.fieldScores = new double[nTestDocs][][];
+
+		double[][] scores = new double[numFields][maxDoc];
+		OpenBitSet selected = new OpenBitSet(maxDoc);
+		for (int q = 0; q < nTestDocs; ++q) {
+			selected.clear(0, maxDoc);
+			for (int f = 0; f < numFields; ++f) {
+				Arrays.fill(scores[f], 0.0);
+				scorer.scorers[f].score(scorer.queryTerms[f][q], 1.0, scores[f]);
+				for (Score score : SparseScorer.selectTopK(scores[f], scorer.trainDocs, listSize))
+					selected.fastSet(score.docID);
+			}
+
+			int[] docs = new int[(int) selected.cardinality()];
+			int n = 0;
+			for (int d = selected.nextSetBit(0); d >= 0; d = selected.nextSetBit(d + 1))
+				docs[n++] = d;
+			docIDs[q] = docs;
+			fieldScores[q] = new double[numFields][docs.length];
+			for (int f = 0; f < numFields; ++f) {
+				for (int i = 0; i < docs.length; ++i)
+					fieldScores[q][f][i] = scores[f][docs[i]];
+			}
+		}
+	}
+
+	int numTestDocs() {
+		return docIDs.length;
+	}
+
+	/**
+	 * @return the topN candidates of the test document by weighted log score,
+	 * sorted by descending score
+	 */
+	Score[] topN(int testDoc, double[] weights, int topN) {
+		int[] docs = docIDs[testDoc];
+		double[][] candidateScores = fieldScores[testDoc];
+		double[] combined = new double[docs.length];
+		for (int f = 0; f < numFields; ++f) {
+			double weight = weights[f];
+			double[] fieldScore = candidateScores[f];
+			for (int i = 0; i < docs.length; ++i)
+				combined[i] += weight * fieldScore[i];
+		}
+		OpenBitSet all = new OpenBitSet(docs.length);
+		all.set(0, docs.length);
+		Score[] top = SparseScorer.selectTopK(combined, all, topN);
+		for (Score score : top)
+			score.docID = docs[score.docID];
+		return top;
+	}
+}
@@ -0,0 +1,100 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * First stage of two-stage retrieval: a Lucene query over the title and desc
+ * terms of a test document fetches the train documents that are then scored
+ * exactly by the structured relevance model.
+ */
+class CandidateGenerator {
+
+	static final String[] QUERY_FIELDS = {"title", "desc"};
+
+	IndexSearcher searcher;
+	// term texts of every test document per query field
+	String[][][] queryTerms;
+	int poolSize;
+
+	/**
+	 * @param stats statistics of QUERY_FIELDS; test terms missing from the train
+	 * documents cannot match and are left out of the queries
+	 * @param poolSize number of candidates (M) fetched per test document
+	 */
+	CandidateGenerator(IndexReader trainIR, IndexReader testIR, FieldStatistics[] stats, int poolSize) throws IOException {
+		this.searcher = new IndexSearcher(trainIR);
+		this.poolSize = poolSize;
+		this.queryTerms = new String[QUERY_FIELDS.length][][];
+		int maxClauses = 0;
+		for (int f = 0; f < QUERY_FIELDS.length; ++f) {
+			int[][] termIds = SparseScorer.queryTerms(testIR, stats[f]);
+			queryTerms[f] = new String[termIds.length][];
+			for (int q = 0; q < termIds.length; ++q) {
+				queryTerms[f][q] = new String[termIds[q].length];
+				for (int i = 0; i < termIds[q].length; ++i)
+					queryTerms[f][q][i] = stats[f].terms[termIds[q][i]];
+			}
+		}
+		for (int q = 0; q < queryTerms[0].length; ++q) {
+			int numClauses = 0;
+			for (int f = 0; f < QUERY_FIELDS.length; ++f)
+				numClauses += queryTerms[f][q].length;
+			maxClauses = Math.max(maxClauses, numClauses);
+		}
+		if (maxClauses > BooleanQuery.getMaxClauseCount())
+			BooleanQuery.setMaxClauseCount(maxClauses);
+	}
+
+	/**
+	 * @return the top poolSize train doc ids for the test document, in increasing order
+	 */
+	int[] candidates(int testDoc) throws IOException {
+		BooleanQuery query = new BooleanQuery();
+		for (int f = 0; f < QUERY_FIELDS.length; ++f) {
+			for (String text : queryTerms[f][testDoc])
+				query.add(new TermQuery(new Term(QUERY_FIELDS[f], text)), BooleanClause.Occur.SHOULD);
+		}
+		TopDocs t = searcher.search(query, poolSize);
+		ScoreDoc[] hits = t.scoreDocs;
+		int[] candidates = new int[hits.length];
+		for (int i = 0; i < hits.length; ++i)
+			candidates[i] = hits[i].doc;
+		Arrays.sort(candidates);
+		return candidates;
+	}
+
+	/**
+	 * @return fraction of the relevant documents that were retrieved
+	 */
+	static double recall(Score[] retrieved, Score[] relevant) {
+		if (relevant.length == 0)
+			return 1.0;
+		Set<Integer> retrievedIDs = new HashSet<Integer>();
+		for (Score score : retrieved)
+			retrievedIDs.add(score.docID);
+		int found = 0;
+		for (Score score : relevant) {
+			if (retrievedIDs.contains(score.docID))
+				found++;
+		}
+		return ((double)found) / relevant.length;
+	}
+
+	void close() throws IOException {
+		searcher.close();
+	}
+}
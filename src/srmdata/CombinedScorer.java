@@ -0,0 +1,85 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.OpenBitSet;
+
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Weighted combination of the title, desc and content models of
+ * predictFields, scored with one SparseScorer per field.
+ */
+class CombinedScorer {
+
+	static final String[] SCORING_FIELDS = {"title", "desc", "content"};
+	static final double[] FIELD_WEIGHTS = {0.45, 0.45, 0.10};
+
+	SparseScorer[] scorers;
+	double[] weights;
+	int[][][] queryTerms;
+	OpenBitSet trainDocs;
+	double[] scores;
+
+	CombinedScorer(IndexReader trainIR, IndexReader testIR, FieldStatistics[] stats,
+			double[] weights, OpenBitSet trainDocs) throws IOException {
+		this(trainIR, testIR, null, stats, weights, trainDocs);
+	}
+
+	/**
+	 * @param testDocs sorted doc ids of the test documents in testIR, null for all;
+	 * test documents are numbered by their position in it
+	 */
+	CombinedScorer(IndexReader trainIR, IndexReader testIR, int[] testDocs, FieldStatistics[] stats,
+			double[] weights, OpenBitSet trainDocs) throws IOException {
+		this.weights = weights;
+		this.scorers = new SparseScorer[stats.length];
+		this.queryTerms = new int[stats.length][][];
+		for (int f = 0; f < stats.length; ++f) {
+			scorers[f] = new SparseScorer(trainIR, stats[f], trainDocs);
+			queryTerms[f] = SparseScorer.queryTerms(testIR, stats[f], testDocs);
+		}
+		this.trainDocs = scorers[0].trainDocs;
+		this.scores = new double[trainIR.maxDoc()];
+	}
+
+	/**
+	 * Scorer over trainDocs (null for all documents) with statistics computed from the same documents
+	 */
+	static CombinedScorer create(IndexReader trainIR, IndexReader testIR, OpenBitSet trainDocs) throws IOException {
+		FieldStatistics[] stats = new FieldStatistics[SCORING_FIELDS.length];
+		for (int f = 0; f < SCORING_FIELDS.length; ++f)
+			stats[f] = FieldStatistics.compute(trainIR, SCORING_FIELDS[f], trainDocs);
+		return new CombinedScorer(trainIR, testIR, stats, FIELD_WEIGHTS, trainDocs);
+	}
+
+	int numTestDocs() {
+		return queryTerms[0].length;
+	}
+
+	/**
+	 * @return the k train documents with the highest combined log score for the test document
+	 */
+	Score[] topK(int testDoc, int k) throws IOException {
+		Arrays.fill(scores, 0.0);
+		for (int f = 0; f < scorers.length; ++f)
+			scorers[f].score(queryTerms[f][testDoc], weights[f], scores);
+		return SparseScorer.selectTopK(scores, trainDocs, k);
+	}
+
+	/**
+	 * @return the k highest scoring of the given (sorted) train documents
+	 */
+	Score[] topK(int testDoc, int[] candidates, int k) throws IOException {
+		OpenBitSet candidateSet = new OpenBitSet(scores.length);
+		for (int d : candidates) {
+			scores[d] = 0.0;
+			candidateSet.fastSet(d);
+		}
+		for (int f = 0; f < scorers.length; ++f)
+			scorers[f].scoreCandidates(queryTerms[f][testDoc], weights[f], candidates, scores);
+		return SparseScorer.selectTopK(scores, candidateSet, k);
+	}
+}
@@ -0,0 +1,107 @@
+package srmdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * A train/test split of the global index as two sets of doc ids. Only the
+ * bitsets are written to disk; the documents are read through DocSplitReader
+ * views of the global index.
+ */
+class DocSplit {
+
+	static final String TEST_STRATA_FIELD = "audience";
+
+	int maxDoc;
+	OpenBitSet trainDocs;
+	OpenBitSet testDocs;
+
+	DocSplit(int maxDoc) {
+		this.maxDoc = maxDoc;
+		this.trainDocs = new OpenBitSet(maxDoc);
+		this.testDocs = new OpenBitSet(maxDoc);
+	}
+
+	/**
+	 * numTesting documents that match testableDocumentsQuery, stratified by
+	 * audience, and the first numTraining other documents in index order
+	 */
+	static DocSplit create(IndexReader ir, int numTesting, int numTraining, long seed) throws IOException {
+
+		DocSplit split = new DocSplit(ir.maxDoc());
+
+		IndexSearcher searcher = new IndexSearcher(ir);
+		TopDocs t = searcher.search(MultiLabelClassificationNSDL.testableDocumentsQuery(), Math.max(1, ir.numDocs()));
+		searcher.close();
+		OpenBitSet testable = new OpenBitSet(ir.maxDoc());
+		for (ScoreDoc hit : t.scoreDocs)
+			testable.fastSet(hit.doc);
+		System.out.println("Number of documents eligible for testing set: " + t.scoreDocs.length);
+
+		StratifiedSampler sampler = new StratifiedSampler(ir, TEST_STRATA_FIELD, testable);
+		StratifiedSampler.Sample sample = sampler.proportional(numTesting, seed);
+		split.testDocs = sampler.select(sample);
+		System.out.println("Testing set by " + TEST_STRATA_FIELD + ": " + sampler.describe(sample));
+
+		int numTrain = 0;
+		for (int d = 0; d < split.maxDoc && numTrain < numTraining; ++d) {
+			if (ir.isDeleted(d) || split.testDocs.fastGet(d))
+				continue;
+			split.trainDocs.fastSet(d);
+			numTrain++;
+		}
+		return split;
+	}
+
+	IndexReader trainReader(IndexReader globalIR) {
+		return new DocSplitReader(globalIR, trainDocs);
+	}
+
+	IndexReader testReader(IndexReader globalIR) {
+		return new DocSplitReader(globalIR, testDocs);
+	}
+
+	void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(maxDoc);
+		writeBits(out, trainDocs);
+		writeBits(out, testDocs);
+		out.close();
+	}
+
+	static DocSplit read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		DocSplit split = new DocSplit(in.readInt());
+		readBits(in, split.trainDocs);
+		readBits(in, split.testDocs);
+		in.close();
+		return split;
+	}
+
+	private static void writeBits(DataOutputStream out, OpenBitSet bits) throws IOException {
+		int numWords = bits.getNumWords();
+		out.writeInt(numWords);
+		long[] words = bits.getBits();
+		for (int i = 0; i < numWords; ++i)
+			out.writeLong(words[i]);
+	}
+
+	private static void readBits(DataInputStream in, OpenBitSet bits) throws IOException {
+		int numWords = in.readInt();
+		long[] words = bits.getBits();
+		for (int i = 0; i < numWords; ++i)
+			words[i] = in.readLong();
+	}
+}
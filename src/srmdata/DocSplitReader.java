@@ -0,0 +1,311 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermFreqVector;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Read-only view of a subset of the documents of an index, numbered 0..n-1 in
+ * the order of their ids in the index. Postings, stored fields and norms are
+ * read from the underlying index, so a train or test set over the global index
+ * needs no copy. Terms without documents in the subset are not enumerated.
+ */
+class DocSplitReader extends FilterIndexReader {
+
+	// doc id in the underlying index of every document of the view
+	int[] docs;
+	// doc id in the view of every document of the underlying index, -1 if not in it
+	int[] viewIds;
+	private Map<String, byte[]> normsCache = new HashMap<String, byte[]>();
+	private Map<Term, Integer> docFreqCache = new HashMap<Term, Integer>();
+
+	/**
+	 * @param in underlying index, closed with this reader
+	 * @param subset documents of in to show, deleted documents are left out
+	 */
+	DocSplitReader(IndexReader in, OpenBitSet subset) {
+		super(in);
+		int maxDoc = in.maxDoc();
+		viewIds = new int[maxDoc];
+		int n = 0;
+		for (int d = 0; d < maxDoc; ++d) {
+			if (subset.get(d) && !in.isDeleted(d))
+				viewIds[d] = n++;
+			else
+				viewIds[d] = -1;
+		}
+		docs = new int[n];
+		for (int d = 0; d < maxDoc; ++d) {
+			if (viewIds[d] >= 0)
+				docs[viewIds[d]] = d;
+		}
+	}
+
+	@Override
+	public int numDocs() {
+		return docs.length;
+	}
+
+	@Override
+	public int maxDoc() {
+		return docs.length;
+	}
+
+	@Override
+	public boolean isDeleted(int n) {
+		return false;
+	}
+
+	@Override
+	public boolean hasDeletions() {
+		return false;
+	}
+
+	@Override
+	public Document document(int n, FieldSelector fieldSelector) throws IOException {
+		return in.document(docs[n], fieldSelector);
+	}
+
+	@Override
+	public TermFreqVector[] getTermFreqVectors(int n) throws IOException {
+		return in.getTermFreqVectors(docs[n]);
+	}
+
+	@Override
+	public TermFreqVector getTermFreqVector(int n, String field) throws IOException {
+		return in.getTermFreqVector(docs[n], field);
+	}
+
+	@Override
+	public synchronized byte[] norms(String field) throws IOException {
+		byte[] norms = normsCache.get(field);
+		if (norms == null && !normsCache.containsKey(field)) {
+			byte[] inNorms = in.norms(field);
+			if (inNorms != null) {
+				norms = new byte[docs.length];
+				for (int n = 0; n < docs.length; ++n)
+					norms[n] = inNorms[docs[n]];
+			}
+			normsCache.put(field, norms);
+		}
+		return norms;
+	}
+
+	@Override
+	public void norms(String field, byte[] bytes, int offset) throws IOException {
+		byte[] norms = norms(field);
+		if (norms != null)
+			System.arraycopy(norms, 0, bytes, offset, norms.length);
+	}
+
+	@Override
+	public TermEnum terms() throws IOException {
+		return new SplitTermEnum(in.terms(), false);
+	}
+
+	@Override
+	public TermEnum terms(Term t) throws IOException {
+		return new SplitTermEnum(in.terms(t), true);
+	}
+
+	@Override
+	public synchronized int docFreq(Term t) throws IOException {
+		Integer docFreq = docFreqCache.get(t);
+		if (docFreq == null) {
+			TermDocs termDocs = termDocs(t);
+			int n = 0;
+			while (termDocs.next())
+				n++;
+			termDocs.close();
+			docFreq = n;
+			docFreqCache.put(t, docFreq);
+		}
+		return docFreq;
+	}
+
+	@Override
+	public TermDocs termDocs() throws IOException {
+		return new SplitTermDocs(in.termDocs());
+	}
+
+	@Override
+	public TermDocs termDocs(Term term) throws IOException {
+		TermDocs termDocs = termDocs();
+		termDocs.seek(term);
+		return termDocs;
+	}
+
+	@Override
+	public TermPositions termPositions() throws IOException {
+		return new SplitTermPositions(in.termPositions());
+	}
+
+	@Override
+	public IndexReader[] getSequentialSubReaders() {
+		// doc ids are remapped, searches must not go to the segments of the underlying index
+		return null;
+	}
+
+	@Override
+	public Object getCoreCacheKey() {
+		return this;
+	}
+
+	@Override
+	public Object getDeletesCacheKey() {
+		return this;
+	}
+
+	class SplitTermDocs extends FilterTermDocs {
+
+		int doc = -1;
+
+		SplitTermDocs(TermDocs in) {
+			super(in);
+		}
+
+		@Override
+		public void seek(TermEnum termEnum) throws IOException {
+			if (termEnum instanceof SplitTermEnum)
+				in.seek(((SplitTermEnum) termEnum).terms);
+			else
+				in.seek(termEnum);
+			doc = -1;
+		}
+
+		@Override
+		public void seek(Term term) throws IOException {
+			in.seek(term);
+			doc = -1;
+		}
+
+		@Override
+		public int doc() {
+			return doc;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			while (in.next()) {
+				int n = viewIds[in.doc()];
+				if (n >= 0) {
+					doc = n;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int read(int[] docIds, int[] freqs) throws IOException {
+			int i = 0;
+			while (i < docIds.length && next()) {
+				docIds[i] = doc;
+				freqs[i] = in.freq();
+				++i;
+			}
+			return i;
+		}
+
+		@Override
+		public boolean skipTo(int target) throws IOException {
+			if (target >= docs.length)
+				return false;
+			if (!in.skipTo(docs[Math.max(target, 0)]))
+				return false;
+			int n = viewIds[in.doc()];
+			if (n >= 0) {
+				doc = n;
+				return true;
+			}
+			return next();
+		}
+	}
+
+	class SplitTermPositions extends SplitTermDocs implements TermPositions {
+
+		SplitTermPositions(TermPositions in) {
+			super(in);
+		}
+
+		@Override
+		public int nextPosition() throws IOException {
+			return ((TermPositions) in).nextPosition();
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return ((TermPositions) in).getPayloadLength();
+		}
+
+		@Override
+		public byte[] getPayload(byte[] data, int offset) throws IOException {
+			return ((TermPositions) in).getPayload(data, offset);
+		}
+
+		@Override
+		public boolean isPayloadAvailable() {
+			return ((TermPositions) in).isPayloadAvailable();
+		}
+	}
+
+	class SplitTermEnum extends FilterTermEnum {
+
+		private TermEnum terms;
+		private TermDocs termDocs;
+		// documents of the current term in the split, counted by inSplit
+		private int docFreq;
+
+		/**
+		 * @param positioned true if in is already on its first term (as returned by terms(Term))
+		 */
+		SplitTermEnum(TermEnum in, boolean positioned) throws IOException {
+			super(in);
+			terms = in;
+			termDocs = DocSplitReader.this.in.termDocs();
+			if (positioned && in.term() != null && !inSplit())
+				next();
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			while (in.next()) {
+				if (inSplit())
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public int docFreq() {
+			return docFreq;
+		}
+
+		@Override
+		public void close() throws IOException {
+			termDocs.close();
+			super.close();
+		}
+
+		private boolean inSplit() throws IOException {
+			termDocs.seek(in);
+			docFreq = 0;
+			while (termDocs.next()) {
+				if (viewIds[termDocs.doc()] >= 0)
+					docFreq++;
+			}
+			return docFreq > 0;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package srmdata;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import srmdata.MultiLabelClassificationNSDL.PredictionResult;
+
+/**
+ * Sums of the evaluation metrics over a set of prediction results. Partial
+ * evaluations of disjoint sets of results are merged, so results can be
+ * evaluated in any order and on any number of threads.
+ *
+ * Precision@K and average precision count the fraction of the tokens of a
+ * predicted value that are relevant, as reported by dumpOutput. nDCG@K uses
+ * the same gains with one full ideal gain per actual value. Label precision and
+ * recall compare whole predicted and actual values.
+ */
+class Evaluation {
+
+	static final int MAX_RANK = MultiLabelClassificationNSDL.MAX_RESULTS;
+
+	int numResults;
+	double sumAveragePrecision;
+	double[] sumPrecisionAtK = new double[MAX_RANK];
+	double[] sumNdcgAtK = new double[MAX_RANK];
+	// per value: true positives, false positives, false negatives
+	Map<String, int[]> labelCounts = new HashMap<String, int[]>();
+
+	void add(PredictionResult result) {
+
+		numResults++;
+		List<List<String>> predictedTokenList = result.getPredictedTokenList();
+
+		double relevance = 0;
+		double fractional_correct = 0;
+		int nRelevant = 0;
+		double[] gains = new double[MAX_RANK];
+		for (int rank = 1; rank <= Math.min(predictedTokenList.size(), MAX_RANK); ++rank) {
+
+			List<String> tokens = predictedTokenList.get(rank-1);
+			if (tokens.size() == 0)
+				continue;
+			// fraction of tokens matched
+			double fracToken = 0;
+			for (String token : tokens) {
+				if (result.isRelevant(token))
+					fracToken++;
+			}
+			fracToken = fracToken / tokens.size();
+			gains[rank-1] = fracToken;
+
+			if (fracToken > 0.0) {
+				fractional_correct += fracToken;
+				nRelevant++;
+			}
+			relevance += fracToken;
+			sumPrecisionAtK[rank-1] += relevance / rank;
+		}
+
+		// ideal ranking: a full gain for every actual value, then the partial
+		// gains of the prediction, so that nDCG never exceeds 1
+		double[] idealGains = gains.clone();
+		Arrays.sort(idealGains);
+		int numActual = result.getActualValues().size();
+		double dcg = 0;
+		double idcg = 0;
+		for (int rank = 1; rank <= MAX_RANK; ++rank) {
+			double discount = 1.0 / log2(rank + 1);
+			dcg += gains[rank-1] * discount;
+			idcg += ((rank <= numActual) ? 1.0 : idealGains[MAX_RANK-rank]) * discount;
+			if (idcg > 0)
+				sumNdcgAtK[rank-1] += dcg / idcg;
+		}
+
+		if (relevance != 0)
+			sumAveragePrecision += fractional_correct / nRelevant;
+
+		for (String predicted : result.getPredictedValues())
+			counts(predicted)[result.getActualValues().contains(predicted) ? 0 : 1]++;
+		for (String actual : result.getActualValues()) {
+			if (!result.getPredictedValues().contains(actual))
+				counts(actual)[2]++;
+		}
+	}
+
+	private int[] counts(String label) {
+		int[] counts = labelCounts.get(label);
+		if (counts == null) {
+			counts = new int[3];
+			labelCounts.put(label, counts);
+		}
+		return counts;
+	}
+
+	private static double log2(double x) {
+		return Math.log(x) / Math.log(2.0);
+	}
+
+	void merge(Evaluation other) {
+		numResults += other.numResults;
+		sumAveragePrecision += other.sumAveragePrecision;
+		for (int k = 0; k < MAX_RANK; ++k) {
+			sumPrecisionAtK[k] += other.sumPrecisionAtK[k];
+			sumNdcgAtK[k] += other.sumNdcgAtK[k];
+		}
+		for (Map.Entry<String, int[]> entry : other.labelCounts.entrySet()) {
+			int[] counts = counts(entry.getKey());
+			for (int i = 0; i < counts.length; ++i)
+				counts[i] += entry.getValue()[i];
+		}
+	}
+
+	double map() {
+		return (numResults == 0) ? 0.0 : sumAveragePrecision / numResults;
+	}
+
+	double[] precisionAtK() {
+		return average(sumPrecisionAtK);
+	}
+
+	double[] ndcgAtK() {
+		return average(sumNdcgAtK);
+	}
+
+	private double[] average(double[] sums) {
+		double[] averages = new double[sums.length];
+		for (int k = 0; k < sums.length; ++k)
+			averages[k] = (numResults == 0) ? 0.0 : sums[k] / numResults;
+		return averages;
+	}
+
+	/**
+	 * @return precision and recall of every value, sorted by value
+	 */
+	Map<String, double[]> labelPrecisionRecall() {
+		Map<String, double[]> precisionRecall = new TreeMap<String, double[]>();
+		for (Map.Entry<String, int[]> entry : labelCounts.entrySet()) {
+			int[] counts = entry.getValue();
+			double precision = (counts[0] + counts[1] == 0) ? 0.0 : ((double)counts[0]) / (counts[0] + counts[1]);
+			double recall = (counts[0] + counts[2] == 0) ? 0.0 : ((double)counts[0]) / (counts[0] + counts[2]);
+			precisionRecall.put(entry.getKey(), new double[] {precision, recall});
+		}
+		return precisionRecall;
+	}
+}
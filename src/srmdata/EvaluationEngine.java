@@ -0,0 +1,75 @@
+package srmdata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import srmdata.MultiLabelClassificationNSDL.PredictionResult;
+
+/**
+ * Evaluates a stream of prediction results: results are collected into
+ * batches, every batch is reduced to a partial Evaluation on a thread pool and
+ * the partial evaluations are merged at the end.
+ */
+class EvaluationEngine {
+
+	static final int BATCH_SIZE = 256;
+
+	private ExecutorService executor;
+	private List<Future<Evaluation>> partials;
+	private List<PredictionResult> batch;
+
+	EvaluationEngine(int numThreads) {
+		executor = Executors.newFixedThreadPool(numThreads);
+		partials = new ArrayList<Future<Evaluation>>();
+		batch = new ArrayList<PredictionResult>(BATCH_SIZE);
+	}
+
+	void add(PredictionResult result) {
+		batch.add(result);
+		if (batch.size() == BATCH_SIZE)
+			submitBatch();
+	}
+
+	private void submitBatch() {
+		final List<PredictionResult> results = batch;
+		batch = new ArrayList<PredictionResult>(BATCH_SIZE);
+		partials.add(executor.submit(new Callable<Evaluation>() {
+			@Override
+			public Evaluation call() {
+				Evaluation evaluation = new Evaluation();
+				for (PredictionResult result : results)
+					evaluation.add(result);
+				return evaluation;
+			}
+		}));
+	}
+
+	/**
+	 * @return the evaluation of all results added, the engine cannot be used afterwards
+	 */
+	Evaluation finish() throws InterruptedException, ExecutionException {
+		if (!batch.isEmpty())
+			submitBatch();
+		Evaluation evaluation = new Evaluation();
+		try {
+			for (Future<Evaluation> partial : partials)
+				evaluation.merge(partial.get());
+		}
+		finally {
+			executor.shutdown();
+		}
+		return evaluation;
+	}
+
+	static Evaluation evaluate(Iterable<PredictionResult> results, int numThreads) throws InterruptedException, ExecutionException {
+		EvaluationEngine engine = new EvaluationEngine(numThreads);
+		for (PredictionResult result : results)
+			engine.add(result);
+		return engine.finish();
+	}
+}
@@ -0,0 +1,170 @@
+package srmdata;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+
+import srmdata.MultiLabelClassificationNSDL.PredictionResult;
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Predicts the fields of the records of a feed in the format of nsdl.info as
+ * they are read, without writing them to an index. Records are read in
+ * micro-batches of batchSize, analyzed in memory and scored by AdHocScorer
+ * against the resident train index on numThreads workers, and their
+ * predictions are written before the next batch is read. Memory stays that of
+ * the train model and one batch, whatever the length of the feed.
+ *
+ * Records carrying values of the predicted fields are also evaluated, into
+ * one Evaluation per field. Records whose URI is that of a train document
+ * find themselves among their neighbors, so they are evaluated apart, into
+ * trainEvaluations.
+ */
+class FeedClassifier {
+
+	IndexReader trainIR;
+	String[] fieldsToPredict;
+	int topN;
+	int batchSize;
+	AdHocScorer[] scorers;
+	MapFieldSelector labelSelector;
+	Set<String> trainURIs;
+
+	int numRecords;
+	AtomicLong numNeighborsUsed = new AtomicLong();
+	Evaluation[] evaluations;
+	Evaluation[] trainEvaluations;
+
+	FeedClassifier(IndexReader trainIR, String[] fieldsToPredict, int topN, int batchSize, int numThreads) throws IOException {
+		this.trainIR = trainIR;
+		this.fieldsToPredict = fieldsToPredict;
+		this.topN = topN;
+		this.batchSize = batchSize;
+		this.scorers = new AdHocScorer[numThreads];
+		scorers[0] = AdHocScorer.create(trainIR);
+		for (int t = 1; t < numThreads; ++t)
+			scorers[t] = scorers[0].copy();
+		this.labelSelector = new MapFieldSelector(fieldsToPredict);
+		this.evaluations = new Evaluation[fieldsToPredict.length];
+		this.trainEvaluations = new Evaluation[fieldsToPredict.length];
+		for (int f = 0; f < fieldsToPredict.length; ++f) {
+			evaluations[f] = new Evaluation();
+			trainEvaluations[f] = new Evaluation();
+		}
+		this.trainURIs = new HashSet<String>();
+		MapFieldSelector uriSelector = new MapFieldSelector("URI");
+		for (int d = 0; d < trainIR.maxDoc(); ++d) {
+			if (!trainIR.isDeleted(d)) {
+				String uri = trainIR.document(d, uriSelector).get("URI");
+				if (uri != null)
+					trainURIs.add(uri);
+			}
+		}
+	}
+
+	/**
+	 * Predict every record of the feed and write the predictions to out
+	 */
+	void run(BufferedReader feed, Writer out) throws Exception {
+
+		ExecutorService executor = Executors.newFixedThreadPool(scorers.length);
+		try {
+			List<Document> batch = new ArrayList<Document>(batchSize);
+			Document record;
+			while ((record = NSDLIndex.readRecord(feed)) != null) {
+				batch.add(record);
+				if (batch.size() == batchSize) {
+					runBatch(executor, batch, out);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty())
+				runBatch(executor, batch, out);
+		}
+		finally {
+			executor.shutdown();
+		}
+		out.flush();
+	}
+
+	private void runBatch(ExecutorService executor, final List<Document> batch, Writer out) throws Exception {
+
+		final int firstRecord = numRecords;
+		final PredictionResult[][] predictions = new PredictionResult[fieldsToPredict.length][batch.size()];
+		int chunkSize = (int) Math.ceil((double)batch.size() / scorers.length);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int t = 0, from = 0; from < batch.size(); ++t, from += chunkSize) {
+			final AdHocScorer scorer = scorers[t];
+			final int fromRecord = from;
+			final int toRecord = Math.min(batch.size(), from + chunkSize);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					for (int i = fromRecord; i < toRecord; ++i)
+						predict(scorer, batch.get(i), firstRecord + i, predictions, i);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures)
+			future.get();
+
+		for (int i = 0; i < batch.size(); ++i) {
+			Document record = batch.get(i);
+			boolean inTrain = trainURIs.contains(record.get("URI"));
+			out.append("\n");
+			out.append("docID: " + (firstRecord + i) + "    URI: " + record.get("URI") + "\n");
+			for (int f = 0; f < fieldsToPredict.length; ++f) {
+				PredictionResult result = predictions[f][i];
+				out.append(fieldsToPredict[f] + ": " + result.getPredictedValues().size() + "\n");
+				for (String predictedValue : result.getPredictedValues())
+					out.append("\t\t" + predictedValue + "\n");
+				if (!result.getActualValues().isEmpty())
+					(inTrain ? trainEvaluations[f] : evaluations[f]).add(result);
+			}
+		}
+		out.flush();
+		numRecords += batch.size();
+	}
+
+	private void predict(AdHocScorer scorer, Document record, int docID, PredictionResult[][] predictions, int i) throws IOException {
+
+		Score[][] neighbors = {scorer.topK(record, topN)};
+		for (Score score : neighbors[0])
+			score.score = Math.pow(10.0, score.score);
+		MultiLabelClassificationNSDL.normalizeScores(neighbors, topN);
+		numNeighborsUsed.addAndGet(MultiLabelClassificationNSDL.cutNeighbors(neighbors, topN));
+
+		List<Map<String,Double>> fieldCounts = new ArrayList<Map<String,Double>>();
+		for (int f = 0; f < fieldsToPredict.length; ++f)
+			fieldCounts.add(new HashMap<String,Double>());
+		for (Score neighbor : neighbors[0]) {
+			Document doc = trainIR.document(neighbor.docID, labelSelector);
+			for (int f = 0; f < fieldsToPredict.length; ++f) {
+				Map<String,Double> counts = fieldCounts.get(f);
+				for (String fieldValue : doc.getValues(fieldsToPredict[f])) {
+					Double count = counts.get(fieldValue);
+					counts.put(fieldValue, (count == null) ? neighbor.score : count + neighbor.score);
+				}
+			}
+		}
+		for (int f = 0; f < fieldsToPredict.length; ++f)
+			predictions[f][i] = MultiLabelClassificationNSDL.predictionResult(fieldsToPredict[f], docID,
+					record.get("URI"), record.getValues(fieldsToPredict[f]), fieldCounts.get(f));
+	}
+}
@@ -0,0 +1,434 @@
+package srmdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Term statistics of one field of a training index, as used by
+ * StructuredRelevanceModel.compute_mlestimate. Only additive quantities are
+ * kept (sums of p_ml and tf, document frequencies, document lengths) so that
+ * the statistics of disjoint sets of documents can be merged.
+ */
+class FieldStatistics {
+
+	String fieldName;
+	int numDocs;
+	int collectionSize;
+	int[] docLengths;
+
+	// sorted in index order
+	String[] terms;
+	int[] docFreqs;
+	double[] collectionFreqs;
+	double[] sumPml;
+
+	private Map<String, Integer> termIds;
+
+	FieldStatistics(String fieldName, int numDocs, int numTerms) {
+		this.fieldName = fieldName;
+		this.numDocs = numDocs;
+		this.docLengths = new int[numDocs];
+		this.terms = new String[numTerms];
+		this.docFreqs = new int[numTerms];
+		this.collectionFreqs = new double[numTerms];
+		this.sumPml = new double[numTerms];
+	}
+
+	/**
+	 * Compute the statistics of a field over the given documents
+	 * @param ir
+	 * @param fieldName
+	 * @param docs documents to include, null for all documents
+	 * @throws IOException
+	 */
+	static FieldStatistics compute(IndexReader ir, String fieldName, OpenBitSet docs) throws IOException {
+		int[] partOf = new int[ir.maxDoc()];
+		if (docs != null) {
+			for (int d = 0; d < partOf.length; ++d)
+				partOf[d] = docs.fastGet(d) ? 0 : -1;
+		}
+		return computeParts(ir, fieldName, partOf, 1)[0];
+	}
+
+	/**
+	 * Compute the statistics of a field over disjoint sets of documents in one
+	 * pass over the postings
+	 * @param partOf set of every document, -1 for documents in none
+	 * @param numParts
+	 * @throws IOException
+	 */
+	static FieldStatistics[] computeParts(IndexReader ir, String fieldName, int[] partOf, int numParts) throws IOException {
+
+		int numDocs = ir.maxDoc();
+		int[] docLengths = new int[numDocs];
+		int[] collectionSizes = new int[numParts];
+		int[] numTerms = new int[numParts];
+		boolean[] found = new boolean[numParts];
+		List<String> fieldTerms = new ArrayList<String>();
+
+		TermEnum termEnum = ir.terms(new Term(fieldName, ""));
+		TermDocs termDocs = ir.termDocs();
+		do {
+			Term t = termEnum.term();
+			if (t == null || !t.field().equals(fieldName))
+				break;
+			if (StructuredRelevanceModel.containsNumber(t.text()))
+				continue;
+			Arrays.fill(found, false);
+			boolean foundAny = false;
+			termDocs.seek(termEnum);
+			while (termDocs.next()) {
+				int d = termDocs.doc();
+				int p = partOf[d];
+				if (p < 0)
+					continue;
+				docLengths[d] += termDocs.freq();
+				collectionSizes[p] += termDocs.freq();
+				if (!found[p]) {
+					found[p] = true;
+					numTerms[p]++;
+					foundAny = true;
+				}
+			}
+			if (foundAny)
+				fieldTerms.add(t.text());
+		} while (termEnum.next());
+		termEnum.close();
+
+		FieldStatistics[] parts = new FieldStatistics[numParts];
+		for (int p = 0; p < numParts; ++p) {
+			parts[p] = new FieldStatistics(fieldName, numDocs, numTerms[p]);
+			parts[p].collectionSize = collectionSizes[p];
+		}
+		for (int d = 0; d < numDocs; ++d) {
+			if (partOf[d] >= 0)
+				parts[partOf[d]].docLengths[d] = docLengths[d];
+		}
+
+		int[] next = new int[numParts];
+		int[] docFreqs = new int[numParts];
+		double[] collectionFreqs = new double[numParts];
+		double[] sumPml = new double[numParts];
+		for (String text : fieldTerms) {
+			Arrays.fill(docFreqs, 0);
+			Arrays.fill(collectionFreqs, 0.0);
+			Arrays.fill(sumPml, 0.0);
+			termDocs.seek(new Term(fieldName, text));
+			while (termDocs.next()) {
+				int d = termDocs.doc();
+				int p = partOf[d];
+				if (p < 0)
+					continue;
+				int tf = termDocs.freq();
+				docFreqs[p]++;
+				collectionFreqs[p] += tf;
+				sumPml[p] += ((double)tf) / docLengths[d];
+			}
+			for (int p = 0; p < numParts; ++p) {
+				if (docFreqs[p] == 0)
+					continue;
+				FieldStatistics stats = parts[p];
+				int i = next[p]++;
+				stats.terms[i] = text;
+				stats.docFreqs[i] = docFreqs[p];
+				stats.collectionFreqs[i] = collectionFreqs[p];
+				stats.sumPml[i] = sumPml[p];
+			}
+		}
+		termDocs.close();
+
+		for (FieldStatistics stats : parts)
+			stats.buildTermIds();
+		return parts;
+	}
+
+	/**
+	 * Merge statistics computed over disjoint sets of documents of the same index
+	 */
+	static FieldStatistics merge(List<FieldStatistics> parts) {
+		FieldStatistics merged = parts.get(0);
+		for (int i = 1; i < parts.size(); ++i)
+			merged = merge(merged, parts.get(i));
+		return merged;
+	}
+
+	static FieldStatistics merge(FieldStatistics a, FieldStatistics b) {
+
+		if (!a.fieldName.equals(b.fieldName) || a.numDocs != b.numDocs)
+			throw new IllegalArgumentException("Cannot merge statistics of " + a.fieldName + " and " + b.fieldName);
+
+		int numShared = 0;
+		int i = 0, j = 0;
+		while (i < a.terms.length && j < b.terms.length) {
+			int cmp = a.terms[i].compareTo(b.terms[j]);
+			if (cmp == 0)
+				numShared++;
+			if (cmp <= 0)
+				++i;
+			if (cmp >= 0)
+				++j;
+		}
+
+		FieldStatistics merged = new FieldStatistics(a.fieldName, a.numDocs, a.terms.length + b.terms.length - numShared);
+		merged.collectionSize = a.collectionSize + b.collectionSize;
+		for (int d = 0; d < merged.numDocs; ++d)
+			merged.docLengths[d] = a.docLengths[d] + b.docLengths[d];
+
+		int k = 0;
+		i = 0;
+		j = 0;
+		while (i < a.terms.length || j < b.terms.length) {
+			int cmp;
+			if (i == a.terms.length)
+				cmp = 1;
+			else if (j == b.terms.length)
+				cmp = -1;
+			else
+				cmp = a.terms[i].compareTo(b.terms[j]);
+			if (cmp <= 0) {
+				merged.terms[k] = a.terms[i];
+				merged.docFreqs[k] += a.docFreqs[i];
+				merged.collectionFreqs[k] += a.collectionFreqs[i];
+				merged.sumPml[k] += a.sumPml[i];
+				++i;
+			}
+			if (cmp >= 0) {
+				merged.terms[k] = b.terms[j];
+				merged.docFreqs[k] += b.docFreqs[j];
+				merged.collectionFreqs[k] += b.collectionFreqs[j];
+				merged.sumPml[k] += b.sumPml[j];
+				++j;
+			}
+			++k;
+		}
+
+		merged.buildTermIds();
+		return merged;
+	}
+
+	/**
+	 * Statistics of the documents of a that are not in b, where b was computed
+	 * over a subset of the documents of a. Terms left without documents are dropped.
+	 */
+	static FieldStatistics subtract(FieldStatistics a, FieldStatistics b) {
+
+		if (!a.fieldName.equals(b.fieldName) || a.numDocs != b.numDocs)
+			throw new IllegalArgumentException("Cannot subtract statistics of " + b.fieldName + " from " + a.fieldName);
+
+		// docFreqs of b aligned with the terms of a
+		int[] bDocFreqs = new int[a.terms.length];
+		int[] bIndex = new int[a.terms.length];
+		int i = 0;
+		for (int j = 0; j < b.terms.length; ++j) {
+			while (i < a.terms.length && a.terms[i].compareTo(b.terms[j]) < 0)
+				++i;
+			if (i == a.terms.length || !a.terms[i].equals(b.terms[j]))
+				throw new IllegalArgumentException("Term " + b.terms[j] + " of " + b.fieldName + " is not in the statistics subtracted from");
+			bDocFreqs[i] = b.docFreqs[j];
+			bIndex[i] = j;
+		}
+
+		int numTerms = 0;
+		for (i = 0; i < a.terms.length; ++i) {
+			if (a.docFreqs[i] > bDocFreqs[i])
+				numTerms++;
+		}
+
+		FieldStatistics difference = new FieldStatistics(a.fieldName, a.numDocs, numTerms);
+		difference.collectionSize = a.collectionSize - b.collectionSize;
+		for (int d = 0; d < difference.numDocs; ++d)
+			difference.docLengths[d] = a.docLengths[d] - b.docLengths[d];
+
+		int k = 0;
+		for (i = 0; i < a.terms.length; ++i) {
+			if (a.docFreqs[i] == bDocFreqs[i])
+				continue;
+			difference.terms[k] = a.terms[i];
+			difference.docFreqs[k] = a.docFreqs[i];
+			difference.collectionFreqs[k] = a.collectionFreqs[i];
+			difference.sumPml[k] = a.sumPml[i];
+			if (bDocFreqs[i] > 0) {
+				int j = bIndex[i];
+				difference.docFreqs[k] -= b.docFreqs[j];
+				difference.collectionFreqs[k] -= b.collectionFreqs[j];
+				difference.sumPml[k] -= b.sumPml[j];
+			}
+			++k;
+		}
+
+		difference.buildTermIds();
+		return difference;
+	}
+
+	/**
+	 * The same term statistics over numDocs documents (ids beyond the current
+	 * ones have no length) with the given collection size, sharing the term arrays
+	 */
+	FieldStatistics withDocsAndCollectionSize(int numDocs, int collectionSize) {
+		FieldStatistics stats = new FieldStatistics(fieldName, numDocs, 0);
+		System.arraycopy(docLengths, 0, stats.docLengths, 0, Math.min(numDocs, this.numDocs));
+		stats.collectionSize = collectionSize;
+		stats.terms = terms;
+		stats.docFreqs = docFreqs;
+		stats.collectionFreqs = collectionFreqs;
+		stats.sumPml = sumPml;
+		stats.termIds = termIds;
+		return stats;
+	}
+
+	/**
+	 * The statistics restricted to the terms in at least minDocFreq and at most
+	 * maxDocFreqRatio of the documents, keeping the maxTerms of them with the
+	 * highest document frequency when maxTerms > 0. Document lengths and the
+	 * collection size still count all terms.
+	 */
+	FieldStatistics prune(int minDocFreq, double maxDocFreqRatio, int maxTerms) {
+
+		double maxDocFreq = maxDocFreqRatio * numDocs;
+		List<Integer> kept = new ArrayList<Integer>();
+		for (int i = 0; i < terms.length; ++i) {
+			if (docFreqs[i] >= minDocFreq && docFreqs[i] <= maxDocFreq)
+				kept.add(i);
+		}
+		if (maxTerms > 0 && kept.size() > maxTerms) {
+			// lowest document frequency kept, and how many terms of it fit
+			int[] sorted = new int[kept.size()];
+			for (int k = 0; k < sorted.length; ++k)
+				sorted[k] = docFreqs[kept.get(k)];
+			Arrays.sort(sorted);
+			int minKept = sorted[sorted.length - maxTerms];
+			int numAtMin = 0;
+			for (int k = sorted.length - maxTerms; k < sorted.length && sorted[k] == minKept; ++k)
+				numAtMin++;
+			List<Integer> capped = new ArrayList<Integer>(maxTerms);
+			for (int i : kept) {
+				if (docFreqs[i] > minKept)
+					capped.add(i);
+				else if (docFreqs[i] == minKept && numAtMin > 0) {
+					capped.add(i);
+					numAtMin--;
+				}
+			}
+			kept = capped;
+		}
+
+		FieldStatistics pruned = new FieldStatistics(fieldName, numDocs, kept.size());
+		pruned.collectionSize = collectionSize;
+		pruned.docLengths = docLengths;
+		for (int k = 0; k < kept.size(); ++k) {
+			int i = kept.get(k);
+			pruned.terms[k] = terms[i];
+			pruned.docFreqs[k] = docFreqs[i];
+			pruned.collectionFreqs[k] = collectionFreqs[i];
+			pruned.sumPml[k] = sumPml[i];
+		}
+		pruned.buildTermIds();
+		return pruned;
+	}
+
+	int numTerms() {
+		return terms.length;
+	}
+
+	/**
+	 * @return id of the term in this field, -1 if it does not occur in the training documents
+	 */
+	int termId(String text) {
+		Integer id = termIds.get(text);
+		return (id == null) ? -1 : id;
+	}
+
+	/**
+	 * log10 of the smoothed estimate of P(t|d) for a document containing the term,
+	 * identical to StructuredRelevanceModel.compute_mlestimate
+	 */
+	double estimate(int termId, int tf, int docLength) {
+		double pavg = Math.log10(sumPml[termId] / docFreqs[termId]);
+		double meanfreq = collectionFreqs[termId] / docFreqs[termId];
+		double term1 = meanfreq / (1.0 + meanfreq);
+		double term2 = 1.0 / (1.0 + meanfreq);
+		double R = term2 * Math.pow(term1, tf);
+		double pml = SmoothingKernel.log10Ratio(tf, docLength);
+		double val = (1.0-R)*pml + R*pavg;
+		if (val == 0.0)
+			return defaultEstimate(termId);
+		return val;
+	}
+
+	/**
+	 * log10 of P(t|d) for a document not containing the term
+	 */
+	double defaultEstimate(int termId) {
+		return Math.log10(collectionFreqs[termId] / collectionSize);
+	}
+
+	/**
+	 * log10(1 - P) for an estimate given as log10(P)
+	 */
+	static double complement(double logEstimate) {
+		return SmoothingKernel.log10Complement(logEstimate);
+	}
+
+	void buildTermIds() {
+		termIds = new HashMap<String, Integer>(terms.length * 2);
+		for (int i = 0; i < terms.length; ++i)
+			termIds.put(terms[i], i);
+	}
+
+	void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeUTF(fieldName);
+		out.writeInt(numDocs);
+		out.writeInt(collectionSize);
+		for (int d = 0; d < numDocs; ++d)
+			out.writeInt(docLengths[d]);
+		out.writeInt(terms.length);
+		for (int i = 0; i < terms.length; ++i) {
+			out.writeUTF(terms[i]);
+			out.writeInt(docFreqs[i]);
+			out.writeDouble(collectionFreqs[i]);
+			out.writeDouble(sumPml[i]);
+		}
+		out.close();
+	}
+
+	static FieldStatistics read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		String fieldName = in.readUTF();
+		int numDocs = in.readInt();
+		int collectionSize = in.readInt();
+		int[] docLengths = new int[numDocs];
+		for (int d = 0; d < numDocs; ++d)
+			docLengths[d] = in.readInt();
+		int numTerms = in.readInt();
+		FieldStatistics stats = new FieldStatistics(fieldName, numDocs, numTerms);
+		stats.collectionSize = collectionSize;
+		stats.docLengths = docLengths;
+		for (int i = 0; i < numTerms; ++i) {
+			stats.terms[i] = in.readUTF();
+			stats.docFreqs[i] = in.readInt();
+			stats.collectionFreqs[i] = in.readDouble();
+			stats.sumPml[i] = in.readDouble();
+		}
+		in.close();
+		stats.buildTermIds();
+		return stats;
+	}
+}
@@ -0,0 +1,232 @@
+package srmdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * The priors of one field kept up to date as documents are appended to the
+ * train index, without recomputing them. An update
+ * - adds the statistics of the new documents to those of the old ones,
+ * - corrects the rows of the old documents for the terms of the new
+ *   documents only, as no other term has a different pavg, meanfreq or
+ *   collection frequency,
+ * - appends the rows of the new documents, scored with SparseScorer.
+ *
+ * The collection size changes with every new document and enters the default
+ * estimate of every term, so the priors are kept at the collection size of
+ * the last full computation (referenceCollectionSize) while it drifts less
+ * than a given fraction from the actual one. That changes every default
+ * estimate by log10(reference / actual). With a drift of 0 any update that
+ * adds terms to the field asks for a full computation, and the updated priors
+ * equal the full computation up to summation order.
+ *
+ * Documents are only appended; deleted or changed train documents need a full
+ * computation.
+ */
+class IncrementalPriors {
+
+	String fieldName;
+	// statistics of the train documents scored so far, with their actual collection size
+	FieldStatistics stats;
+	// collection size the default estimates of the priors are computed with
+	int referenceCollectionSize;
+	// scores[train doc][test doc] as returned by PriorCalculator.computePriors
+	double[][] scores;
+
+	// terms of the last update whose statistics changed
+	int numChangedTerms;
+
+	IncrementalPriors(String fieldName, FieldStatistics stats, int referenceCollectionSize, double[][] scores) {
+		this.fieldName = fieldName;
+		this.stats = stats;
+		this.referenceCollectionSize = referenceCollectionSize;
+		this.scores = scores;
+	}
+
+	/**
+	 * Full computation of the priors of a field
+	 */
+	static IncrementalPriors compute(IndexReader trainIR, IndexReader testIR, String fieldName) throws Exception {
+		FieldStatistics stats = FieldStatistics.compute(trainIR, fieldName, null);
+		double[][] scores = new PriorCalculator(testIR, trainIR, fieldName).computePriors();
+		return new IncrementalPriors(fieldName, stats, stats.collectionSize, scores);
+	}
+
+	int numTrainDocs() {
+		return scores.length;
+	}
+
+	/**
+	 * Relative difference of a collection size to the reference one
+	 */
+	double drift(int collectionSize) {
+		if (referenceCollectionSize == 0)
+			return (collectionSize == 0) ? 0.0 : Double.POSITIVE_INFINITY;
+		return Math.abs(((double)collectionSize) / referenceCollectionSize - 1.0);
+	}
+
+	/**
+	 * Add the documents of trainIR beyond numTrainDocs() to the priors
+	 * @param testIR the test index the priors were computed for
+	 * @param maxDrift largest relative difference of the actual to the reference collection size
+	 * @return false, leaving the priors unchanged, if the drift is larger and they need a full computation
+	 * @throws IOException
+	 */
+	boolean update(IndexReader trainIR, IndexReader testIR, double maxDrift) throws IOException {
+
+		int nOldDocs = numTrainDocs();
+		int nTrainDocs = trainIR.maxDoc();
+		int nTestDocs = testIR.maxDoc();
+		numChangedTerms = 0;
+		if (nTrainDocs < nOldDocs || (nOldDocs > 0 && scores[0].length != nTestDocs))
+			return false;
+		if (nTrainDocs == nOldDocs)
+			return true;
+
+		OpenBitSet added = new OpenBitSet(nTrainDocs);
+		added.set(nOldDocs, nTrainDocs);
+		FieldStatistics delta = FieldStatistics.compute(trainIR, fieldName, added);
+		FieldStatistics updated = FieldStatistics.merge(
+				stats.withDocsAndCollectionSize(nTrainDocs, stats.collectionSize), delta);
+		if (drift(updated.collectionSize) > maxDrift)
+			return false;
+
+		FieldStatistics oldScoring = stats.withDocsAndCollectionSize(nOldDocs, referenceCollectionSize);
+		FieldStatistics newScoring = updated.withDocsAndCollectionSize(nTrainDocs, referenceCollectionSize);
+		correctRows(trainIR, testIR, delta, oldScoring, newScoring);
+		appendRows(trainIR, testIR, added, newScoring);
+
+		numChangedTerms = delta.numTerms();
+		stats = updated;
+		return true;
+	}
+
+	/**
+	 * Replace the contribution of every term of delta to the rows of the old
+	 * documents. The part of a term shared by all documents not containing it
+	 * goes to one shift of all rows and one shift of the columns of the test
+	 * documents containing it; only the old documents containing it get their
+	 * own correction.
+	 */
+	private void correctRows(IndexReader trainIR, IndexReader testIR, FieldStatistics delta,
+			FieldStatistics oldScoring, FieldStatistics newScoring) throws IOException {
+
+		int nOldDocs = numTrainDocs();
+		int nTestDocs = testIR.maxDoc();
+		double allShift = 0.0;
+		double[] rowShifts = new double[nOldDocs];
+		double[] columnShifts = new double[nTestDocs];
+		int[] testDocs = new int[nTestDocs];
+
+		TermDocs trainDocs = trainIR.termDocs();
+		TermDocs testTermDocs = testIR.termDocs();
+		for (String text : delta.terms) {
+			Term term = new Term(fieldName, text);
+			int oldId = oldScoring.termId(text);
+			int newId = newScoring.termId(text);
+
+			double oldDefault = (oldId >= 0) ? oldScoring.defaultEstimate(oldId) : 0.0;
+			double oldDefaultAbsent = (oldId >= 0) ? FieldStatistics.complement(oldDefault) : 0.0;
+			double newDefault = newScoring.defaultEstimate(newId);
+			double absentShift = FieldStatistics.complement(newDefault) - oldDefaultAbsent;
+			double presentShift = newDefault - oldDefault;
+			allShift += absentShift;
+
+			int numTestDocs = 0;
+			testTermDocs.seek(term);
+			while (testTermDocs.next())
+				testDocs[numTestDocs++] = testTermDocs.doc();
+			for (int i = 0; i < numTestDocs; ++i)
+				columnShifts[testDocs[i]] += presentShift - absentShift;
+
+			// a new term has no postings in the old documents
+			if (oldId < 0)
+				continue;
+			trainDocs.seek(term);
+			while (trainDocs.next()) {
+				int md = trainDocs.doc();
+				if (md >= nOldDocs)
+					break;
+				int tf = trainDocs.freq();
+				int docLength = oldScoring.docLengths[md];
+				double oldEstimate = oldScoring.estimate(oldId, tf, docLength);
+				double newEstimate = newScoring.estimate(newId, tf, docLength);
+				double absent = FieldStatistics.complement(newEstimate) - FieldStatistics.complement(oldEstimate) - absentShift;
+				double present = newEstimate - oldEstimate - presentShift;
+				rowShifts[md] += absent;
+				double[] row = scores[md];
+				for (int i = 0; i < numTestDocs; ++i)
+					row[testDocs[i]] += present - absent;
+			}
+		}
+		trainDocs.close();
+		testTermDocs.close();
+
+		for (int md = 0; md < nOldDocs; ++md)
+			ScoreKernels.addRow(scores[md], columnShifts, allShift + rowShifts[md]);
+	}
+
+	/**
+	 * Score the added documents against every test document
+	 */
+	private void appendRows(IndexReader trainIR, IndexReader testIR, OpenBitSet added, FieldStatistics newScoring) throws IOException {
+
+		int nOldDocs = numTrainDocs();
+		int nTrainDocs = trainIR.maxDoc();
+		int nTestDocs = testIR.maxDoc();
+		SparseScorer scorer = new SparseScorer(trainIR, newScoring, added);
+		int[][] queryTerms = SparseScorer.queryTerms(testIR, newScoring);
+
+		double[][] appended = Arrays.copyOf(scores, nTrainDocs);
+		for (int md = nOldDocs; md < nTrainDocs; ++md)
+			appended[md] = new double[nTestDocs];
+		double[] column = new double[nTrainDocs];
+		for (int q = 0; q < nTestDocs; ++q) {
+			Arrays.fill(column, nOldDocs, nTrainDocs, 0.0);
+			scorer.score(queryTerms[q], 1.0, column);
+			for (int md = nOldDocs; md < nTrainDocs; ++md)
+				appended[md][q] = column[md];
+		}
+		scores = appended;
+	}
+
+	void write(File file) throws IOException {
+		stats.write(new File(file.getPath() + "_stats"));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeUTF(fieldName);
+		out.writeInt(referenceCollectionSize);
+		out.writeInt(scores.length);
+		out.writeInt((scores.length == 0) ? 0 : scores[0].length);
+		for (double[] row : scores) {
+			for (double score : row)
+				out.writeDouble(score);
+		}
+		out.close();
+	}
+
+	static IncrementalPriors read(File file) throws IOException {
+		FieldStatistics stats = FieldStatistics.read(new File(file.getPath() + "_stats"));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		String fieldName = in.readUTF();
+		int referenceCollectionSize = in.readInt();
+		double[][] scores = new double[in.readInt()][in.readInt()];
+		for (double[] row : scores) {
+			for (int q = 0; q < row.length; ++q)
+				row[q] = in.readDouble();
+		}
+		in.close();
+		return new IncrementalPriors(fieldName, stats, referenceCollectionSize, scores);
+	}
+}
@@ -0,0 +1,263 @@
+package srmdata;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.OpenBitSet;
+
+import srmdata.MultiLabelClassificationNSDL.PredictionResult;
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * k-fold cross-validation of the predictFields model over the global index.
+ *
+ * The documents that can be tested are split into k folds and every fold is
+ * tested against all other documents of the index. The field statistics of
+ * each fold and of the documents in no fold are computed in one pass over the
+ * postings; the statistics of a training set are their total minus its fold,
+ * so no index is rebuilt and no fold rescans the statistics.
+ */
+class KFoldRunner {
+
+	static final String[] PREDICTED_FIELDS = {"subject", "audience", "educationLevel"};
+
+	static class FoldResult {
+		int fold;
+		int numTestDocs;
+		double seconds;
+		// per predicted field, over the test documents
+		Evaluation[] evaluations;
+
+		FoldResult(int fold) {
+			this.fold = fold;
+			this.evaluations = new Evaluation[PREDICTED_FIELDS.length];
+			for (int f = 0; f < PREDICTED_FIELDS.length; ++f)
+				this.evaluations[f] = new Evaluation();
+		}
+	}
+
+	IndexReader ir;
+	int numFolds;
+	// fold of every document, numFolds for documents only trained on, -1 for deleted documents
+	int[] foldOf;
+	// sorted ids of the documents tested in each fold
+	int[][] testDocs;
+	// [scoring field]
+	FieldStatistics[] totalStats;
+	// [scoring field][fold]
+	FieldStatistics[][] foldStats;
+
+	/**
+	 * @param maxTestDocsPerFold test at most this many documents of each fold
+	 * (the whole fold is still left out of training), 0 for all
+	 */
+	KFoldRunner(IndexReader ir, int numFolds, int maxTestDocsPerFold, long seed) throws IOException {
+
+		this.ir = ir;
+		this.numFolds = numFolds;
+		int maxDoc = ir.maxDoc();
+
+		foldOf = new int[maxDoc];
+		for (int d = 0; d < maxDoc; ++d)
+			foldOf[d] = ir.isDeleted(d) ? -1 : numFolds;
+
+		IndexSearcher searcher = new IndexSearcher(ir);
+		TopDocs t = searcher.search(MultiLabelClassificationNSDL.testableDocumentsQuery(), Math.max(1, ir.numDocs()));
+		searcher.close();
+		List<Integer> testable = new ArrayList<Integer>();
+		for (ScoreDoc hit : t.scoreDocs)
+			testable.add(hit.doc);
+		Collections.sort(testable);
+		Collections.shuffle(testable, new Random(seed));
+
+		List<List<Integer>> folds = new ArrayList<List<Integer>>();
+		for (int k = 0; k < numFolds; ++k)
+			folds.add(new ArrayList<Integer>());
+		for (int i = 0; i < testable.size(); ++i) {
+			int d = testable.get(i);
+			foldOf[d] = i % numFolds;
+			folds.get(i % numFolds).add(d);
+		}
+
+		testDocs = new int[numFolds][];
+		for (int k = 0; k < numFolds; ++k) {
+			List<Integer> fold = folds.get(k);
+			int n = (maxTestDocsPerFold > 0) ? Math.min(maxTestDocsPerFold, fold.size()) : fold.size();
+			testDocs[k] = new int[n];
+			for (int i = 0; i < n; ++i)
+				testDocs[k][i] = fold.get(i);
+			Arrays.sort(testDocs[k]);
+		}
+
+		String[] fields = CombinedScorer.SCORING_FIELDS;
+		totalStats = new FieldStatistics[fields.length];
+		foldStats = new FieldStatistics[fields.length][];
+		for (int f = 0; f < fields.length; ++f) {
+			FieldStatistics[] parts = FieldStatistics.computeParts(ir, fields[f], foldOf, numFolds + 1);
+			totalStats[f] = FieldStatistics.merge(Arrays.asList(parts));
+			foldStats[f] = Arrays.copyOf(parts, numFolds);
+		}
+	}
+
+	/**
+	 * Run the folds on numThreads threads
+	 */
+	List<FoldResult> run(final int topN, int numThreads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<FoldResult>> futures = new ArrayList<Future<FoldResult>>();
+		for (int k = 0; k < numFolds; ++k) {
+			final int fold = k;
+			futures.add(executor.submit(new Callable<FoldResult>() {
+				@Override
+				public FoldResult call() throws Exception {
+					return runFold(fold, topN);
+				}
+			}));
+		}
+		List<FoldResult> results = new ArrayList<FoldResult>();
+		try {
+			for (Future<FoldResult> future : futures)
+				results.add(future.get());
+		}
+		finally {
+			executor.shutdown();
+		}
+		return results;
+	}
+
+	FoldResult runFold(int fold, int topN) throws IOException {
+
+		long t1 = System.nanoTime();
+		FoldResult result = new FoldResult(fold);
+
+		OpenBitSet trainDocs = new OpenBitSet(ir.maxDoc());
+		for (int d = 0; d < foldOf.length; ++d) {
+			if (foldOf[d] >= 0 && foldOf[d] != fold)
+				trainDocs.fastSet(d);
+		}
+		FieldStatistics[] stats = new FieldStatistics[totalStats.length];
+		for (int f = 0; f < stats.length; ++f)
+			stats[f] = FieldStatistics.subtract(totalStats[f], foldStats[f][fold]);
+		CombinedScorer scorer = new CombinedScorer(ir, ir, testDocs[fold], stats, CombinedScorer.FIELD_WEIGHTS, trainDocs);
+
+		MapFieldSelector labelSelector = new MapFieldSelector(PREDICTED_FIELDS);
+		Map<Integer, String[][]> labelCache = new HashMap<Integer, String[][]>();
+		Map<String,Double> fieldCounts = new HashMap<String,Double>();
+		for (int q = 0; q < testDocs[fold].length; ++q) {
+			Score[][] neighbors = {scorer.topK(q, topN)};
+			for (Score score : neighbors[0])
+				score.score = Math.pow(10.0, score.score);
+			MultiLabelClassificationNSDL.normalizeScores(neighbors, topN);
+
+			Document testDoc = ir.document(testDocs[fold][q]);
+			for (int f = 0; f < PREDICTED_FIELDS.length; ++f) {
+				fieldCounts.clear();
+				for (Score score : neighbors[0]) {
+					for (String fieldValue : labels(score.docID, labelSelector, labelCache)[f]) {
+						Double count = fieldCounts.get(fieldValue);
+						fieldCounts.put(fieldValue, (count == null) ? score.score : count + score.score);
+					}
+				}
+				PredictionResult prediction = MultiLabelClassificationNSDL.predictionResult(PREDICTED_FIELDS[f],
+						testDocs[fold][q], testDoc.get("URI"), testDoc.getValues(PREDICTED_FIELDS[f]), fieldCounts);
+				result.evaluations[f].add(prediction);
+			}
+			result.numTestDocs++;
+		}
+
+		long t2 = System.nanoTime();
+		result.seconds = ((double)(t2-t1)) / 1E9;
+		System.out.println("Fold " + fold + ": " + result.numTestDocs + " test documents, " +
+				trainDocs.cardinality() + " train documents, time: " + result.seconds);
+		return result;
+	}
+
+	private String[][] labels(int docID, MapFieldSelector labelSelector, Map<Integer, String[][]> labelCache) throws IOException {
+		String[][] labels = labelCache.get(docID);
+		if (labels == null) {
+			Document doc = ir.document(docID, labelSelector);
+			labels = new String[PREDICTED_FIELDS.length][];
+			for (int f = 0; f < PREDICTED_FIELDS.length; ++f)
+				labels[f] = doc.getValues(PREDICTED_FIELDS[f]);
+			labelCache.put(docID, labels);
+		}
+		return labels;
+	}
+
+	/**
+	 * MAP and P@K of every fold and over the test documents of all folds
+	 */
+	static void write(BufferedWriter writer, List<FoldResult> results) throws IOException {
+		FoldResult total = new FoldResult(-1);
+		for (FoldResult result : results) {
+			writeResult(writer, "fold " + result.fold, result);
+			total.numTestDocs += result.numTestDocs;
+			total.seconds += result.seconds;
+			for (int f = 0; f < PREDICTED_FIELDS.length; ++f)
+				total.evaluations[f].merge(result.evaluations[f]);
+		}
+		writeResult(writer, "all", total);
+	}
+
+	private static void writeResult(BufferedWriter writer, String name, FoldResult result) throws IOException {
+		for (int f = 0; f < PREDICTED_FIELDS.length; ++f) {
+			String line = name + " " + PREDICTED_FIELDS[f] + " test_docs: " + result.numTestDocs +
+					" MAP: " + result.evaluations[f].map() + " Precison@K:";
+			for (double precision : result.evaluations[f].precisionAtK())
+				line += " " + precision;
+			System.out.println(line);
+			writer.append(line + "\n");
+		}
+	}
+
+	/**
+	 * KFoldRunner [numFolds [maxTestDocsPerFold [seed]]]
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int numFolds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+		int maxTestDocsPerFold = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+		long seed = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+		int topN = 500;
+
+		IndexReader ir = IndexReader.open(FSDirectory.open(new File(NSDLIndex.NSDL_GLOBAL_INDEX_DIR_NAME)), true);
+
+		long t1, t2;
+		t1 = System.nanoTime();
+		KFoldRunner runner = new KFoldRunner(ir, numFolds, maxTestDocsPerFold, seed);
+		t2 = System.nanoTime();
+		System.out.println("Time Taken Fold Statistics: " + ((double)(t2-t1)) / 1E9);
+
+		t1 = System.nanoTime();
+		List<FoldResult> results = runner.run(topN, Math.min(numFolds, PriorCalculator.numThreads));
+		t2 = System.nanoTime();
+		System.out.println("Time Taken " + numFolds + " Folds: " + ((double)(t2-t1)) / 1E9);
+
+		BufferedWriter writer = new BufferedWriter(new FileWriter(MultiLabelClassificationNSDL.OUTPUT_FILE_NAME + "_kfold_" + numFolds));
+		KFoldRunner.write(writer, results);
+		writer.flush();
+		writer.close();
+
+		ir.close();
+	}
+}
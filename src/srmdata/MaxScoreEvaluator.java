@@ -0,0 +1,252 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+
+import srmdata.StructuredRelevanceModel.DescendingScoreComp;
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * MaxScore top K evaluation of a CombinedScorer.
+ *
+ * The combined score of a train document is base[d] + gain(q) plus the
+ * corrections of the test terms it contains, and no correction of a term
+ * exceeds its precomputed upper bound. Terms are sorted by upper bound; the
+ * shortest prefix of them that cannot lift even the highest base above the
+ * current K-th score is non-essential. Only the postings of essential terms are
+ * traversed, non-essential postings are probed for documents whose bound still
+ * reaches the heap. Documents that have no essential postings are visited in
+ * decreasing order of base[d] until their bound falls below the K-th score.
+ * The result is the same top K as exhaustive scoring.
+ */
+class MaxScoreEvaluator {
+
+	private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+	// relative slack on bounds for the different summation order of exhaustive scoring
+	private static final double SLACK = 1E-9;
+
+	CombinedScorer scorer;
+	double[] base;
+	int[] order;
+	double[][] maxCorrections;
+
+	boolean[] seen;
+	int[] seenDocs;
+	int numSeen;
+
+	// documents scored and skipped by the last call to topK
+	int numScored;
+	int numSkipped;
+
+	static class QueryTerm {
+		SparseScorer fieldScorer;
+		Term term;
+		int termId;
+		double weight;
+		double upperBound;
+		TermDocs postings;
+		int doc = -1;
+
+		void next() throws IOException {
+			doc = postings.next() ? postings.doc() : NO_MORE_DOCS;
+		}
+
+		void advance(int target) throws IOException {
+			if (doc >= target)
+				return;
+			doc = postings.skipTo(target) ? postings.doc() : NO_MORE_DOCS;
+		}
+
+		double contribution() {
+			return weight * fieldScorer.correction(termId, postings.freq(), doc);
+		}
+	}
+
+	MaxScoreEvaluator(CombinedScorer scorer) throws IOException {
+		this.scorer = scorer;
+		int maxDoc = scorer.scores.length;
+
+		base = new double[maxDoc];
+		int numDocs = (int) scorer.trainDocs.cardinality();
+		Integer[] docs = new Integer[numDocs];
+		int n = 0;
+		for (int d = scorer.trainDocs.nextSetBit(0); d >= 0; d = scorer.trainDocs.nextSetBit(d + 1)) {
+			for (int f = 0; f < scorer.scorers.length; ++f)
+				base[d] += scorer.weights[f] * scorer.scorers[f].base[d];
+			docs[n++] = d;
+		}
+		Arrays.sort(docs, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(base[o2], base[o1]);
+			}
+		});
+		order = new int[numDocs];
+		for (int i = 0; i < numDocs; ++i)
+			order[i] = docs[i];
+
+		maxCorrections = new double[scorer.scorers.length][];
+		for (int f = 0; f < scorer.scorers.length; ++f)
+			maxCorrections[f] = scorer.scorers[f].maxCorrections();
+
+		seen = new boolean[maxDoc];
+		seenDocs = new int[maxDoc];
+	}
+
+	/**
+	 * @return the k train documents with the highest combined log score for
+	 * the test document, the same as CombinedScorer.topK
+	 */
+	Score[] topK(int testDoc, int k) throws IOException {
+
+		numScored = 0;
+		if (order.length == 0 || k == 0) {
+			numSkipped = order.length;
+			return new Score[0];
+		}
+
+		double gain = 0.0;
+		List<QueryTerm> termList = new ArrayList<QueryTerm>();
+		for (int f = 0; f < scorer.scorers.length; ++f) {
+			SparseScorer fieldScorer = scorer.scorers[f];
+			for (int termId : scorer.queryTerms[f][testDoc]) {
+				QueryTerm qt = new QueryTerm();
+				qt.fieldScorer = fieldScorer;
+				qt.term = new Term(fieldScorer.stats.fieldName, fieldScorer.stats.terms[termId]);
+				qt.termId = termId;
+				qt.weight = scorer.weights[f];
+				qt.upperBound = Math.max(0.0, qt.weight * maxCorrections[f][termId]);
+				gain += qt.weight * fieldScorer.presenceGain[termId];
+				termList.add(qt);
+			}
+		}
+		QueryTerm[] terms = termList.toArray(new QueryTerm[termList.size()]);
+		Arrays.sort(terms, new Comparator<QueryTerm>() {
+			@Override
+			public int compare(QueryTerm o1, QueryTerm o2) {
+				return Double.compare(o1.upperBound, o2.upperBound);
+			}
+		});
+		int n = terms.length;
+		double[] prefixBound = new double[n + 1];
+		for (int j = 0; j < n; ++j)
+			prefixBound[j+1] = prefixBound[j] + terms[j].upperBound;
+		double maxBase = base[order[0]];
+
+		PriorityQueue<Score> heap = new PriorityQueue<Score>(k + 1, Collections.reverseOrder(new DescendingScoreComp()));
+
+		// seed the heap with the documents of highest base
+		int numSeeds = Math.min(k, order.length);
+		int[] seeds = Arrays.copyOf(order, numSeeds);
+		Arrays.sort(seeds);
+		for (int d : seeds)
+			scorer.scores[d] = 0.0;
+		for (int f = 0; f < scorer.scorers.length; ++f)
+			scorer.scorers[f].scoreCandidates(scorer.queryTerms[f][testDoc], scorer.weights[f], seeds, scorer.scores);
+		for (int d : seeds) {
+			markSeen(d);
+			offer(heap, k, d, scorer.scores[d]);
+		}
+		numScored += numSeeds;
+
+		// terms[0..numNonEssential) are only probed
+		int numNonEssential = 0;
+		while (numNonEssential < n && cannotEnter(maxBase + gain + prefixBound[numNonEssential+1], heap, k))
+			numNonEssential++;
+
+		for (QueryTerm qt : terms)
+			qt.postings = scorer.scorers[0].trainIR.termDocs(qt.term);
+		for (int j = numNonEssential; j < n; ++j)
+			terms[j].next();
+
+		while (true) {
+			int d = NO_MORE_DOCS;
+			for (int j = numNonEssential; j < n; ++j)
+				d = Math.min(d, terms[j].doc);
+			if (d == NO_MORE_DOCS)
+				break;
+
+			double partial = 0.0;
+			for (int j = numNonEssential; j < n; ++j) {
+				if (terms[j].doc == d) {
+					partial += terms[j].contribution();
+					terms[j].next();
+				}
+			}
+			if (!scorer.trainDocs.fastGet(d) || seen[d])
+				continue;
+			markSeen(d);
+			if (cannotEnter(base[d] + gain + partial + prefixBound[numNonEssential], heap, k))
+				continue;
+
+			double score = base[d] + gain + partial;
+			for (int j = 0; j < numNonEssential; ++j) {
+				terms[j].advance(d);
+				if (terms[j].doc == d)
+					score += terms[j].contribution();
+			}
+			numScored++;
+			offer(heap, k, d, score);
+			while (numNonEssential < n && cannotEnter(maxBase + gain + prefixBound[numNonEssential+1], heap, k))
+				numNonEssential++;
+		}
+
+		// documents without essential postings can only gain from non-essential terms
+		TermDocs probe = scorer.scorers[0].trainIR.termDocs();
+		for (int d : order) {
+			if (seen[d])
+				continue;
+			if (cannotEnter(base[d] + gain + prefixBound[numNonEssential], heap, k))
+				break;
+			double score = base[d] + gain;
+			for (int j = 0; j < numNonEssential; ++j) {
+				probe.seek(terms[j].term);
+				if (probe.skipTo(d) && probe.doc() == d)
+					score += terms[j].weight * terms[j].fieldScorer.correction(terms[j].termId, probe.freq(), d);
+			}
+			numScored++;
+			offer(heap, k, d, score);
+		}
+		probe.close();
+
+		for (QueryTerm qt : terms)
+			qt.postings.close();
+		for (int i = 0; i < numSeen; ++i)
+			seen[seenDocs[i]] = false;
+		numSeen = 0;
+		numSkipped = order.length - numScored;
+
+		Score[] topK = new Score[heap.size()];
+		for (int j = topK.length - 1; j >= 0; --j)
+			topK[j] = heap.poll();
+		return topK;
+	}
+
+	private void markSeen(int d) {
+		seen[d] = true;
+		seenDocs[numSeen++] = d;
+	}
+
+	private static boolean cannotEnter(double bound, PriorityQueue<Score> heap, int k) {
+		return heap.size() == k && bound + SLACK * (1.0 + Math.abs(bound)) < heap.peek().score;
+	}
+
+	private static void offer(PriorityQueue<Score> heap, int k, int d, double score) {
+		if (heap.size() == k && score <= heap.peek().score)
+			return;
+		Score s = new Score();
+		s.docID = d;
+		s.score = score;
+		heap.add(s);
+		if (heap.size() > k)
+			heap.poll();
+	}
+}
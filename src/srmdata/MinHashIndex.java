@@ -0,0 +1,271 @@
+package srmdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.OpenBitSet;
+
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Banded LSH over MinHash signatures of the title+desc term set of every
+ * train document. Train documents that share a band with a test document are
+ * the candidates for exact scoring, so the candidates of a query do not grow
+ * with the size of the training set.
+ */
+class MinHashIndex {
+
+	static final String[] SIGNATURE_FIELDS = {"title", "desc"};
+
+	int numHashes;
+	int numBands;
+	int rowsPerBand;
+	long[] hashSeeds;
+
+	// per band: bucket keys of all train documents, sorted, and the documents in the same order
+	long[][] bandKeys;
+	int[][] bandDocs;
+
+	/**
+	 * @param numHashes signature length
+	 * @param numBands number of bands, numHashes / numBands rows per band
+	 */
+	MinHashIndex(IndexReader trainIR, OpenBitSet trainDocs, int numHashes, int numBands) throws IOException {
+
+		if (numHashes % numBands != 0)
+			throw new IllegalArgumentException("numHashes " + numHashes + " is not a multiple of numBands " + numBands);
+		this.numHashes = numHashes;
+		this.numBands = numBands;
+		this.rowsPerBand = numHashes / numBands;
+		this.hashSeeds = new long[numHashes];
+		Random random = new Random(numHashes * 31 + numBands);
+		for (int i = 0; i < numHashes; ++i)
+			hashSeeds[i] = random.nextLong();
+
+		int maxDoc = trainIR.maxDoc();
+		int[] signatures = new int[maxDoc * numHashes];
+		Arrays.fill(signatures, Integer.MAX_VALUE);
+		boolean[] hasTerms = new boolean[maxDoc];
+		int[] termHashes = new int[numHashes];
+
+		TermDocs termDocs = trainIR.termDocs();
+		for (String fieldName : SIGNATURE_FIELDS) {
+			TermEnum termEnum = trainIR.terms(new Term(fieldName, ""));
+			do {
+				Term t = termEnum.term();
+				if (t == null || !t.field().equals(fieldName))
+					break;
+				if (StructuredRelevanceModel.containsNumber(t.text()))
+					continue;
+				hash(t.text(), termHashes);
+				termDocs.seek(termEnum);
+				while (termDocs.next()) {
+					int d = termDocs.doc();
+					if (trainDocs != null && !trainDocs.fastGet(d))
+						continue;
+					hasTerms[d] = true;
+					int offset = d * numHashes;
+					for (int i = 0; i < numHashes; ++i) {
+						if (termHashes[i] < signatures[offset + i])
+							signatures[offset + i] = termHashes[i];
+					}
+				}
+			} while (termEnum.next());
+			termEnum.close();
+		}
+		termDocs.close();
+
+		int numDocs = 0;
+		for (int d = 0; d < maxDoc; ++d) {
+			if (hasTerms[d])
+				numDocs++;
+		}
+
+		bandKeys = new long[numBands][numDocs];
+		bandDocs = new int[numBands][numDocs];
+		long[] entries = new long[numDocs];
+		int[] signature = new int[numHashes];
+		for (int b = 0; b < numBands; ++b) {
+			int n = 0;
+			for (int d = 0; d < maxDoc; ++d) {
+				if (!hasTerms[d])
+					continue;
+				System.arraycopy(signatures, d * numHashes, signature, 0, numHashes);
+				// bucket key in the high bits, doc id in the low bits, so sorting groups buckets
+				entries[n++] = (bandKey(signature, b) & 0xFFFFFFFF00000000L) | d;
+			}
+			Arrays.sort(entries, 0, n);
+			for (int i = 0; i < n; ++i) {
+				bandKeys[b][i] = entries[i] & 0xFFFFFFFF00000000L;
+				bandDocs[b][i] = (int) (entries[i] & 0xFFFFFFFFL);
+			}
+		}
+	}
+
+	/**
+	 * @return sorted train doc ids sharing at least one band with the term set
+	 */
+	int[] candidates(Collection<String> terms) {
+
+		int[] signature = new int[numHashes];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		int[] termHashes = new int[numHashes];
+		for (String text : terms) {
+			hash(text, termHashes);
+			for (int i = 0; i < numHashes; ++i) {
+				if (termHashes[i] < signature[i])
+					signature[i] = termHashes[i];
+			}
+		}
+		if (terms.isEmpty())
+			return new int[0];
+
+		int numCandidates = 0;
+		int[] candidates = new int[16];
+		for (int b = 0; b < numBands; ++b) {
+			long key = bandKey(signature, b) & 0xFFFFFFFF00000000L;
+			long[] keys = bandKeys[b];
+			int i = lowerBound(keys, key);
+			for (; i < keys.length && keys[i] == key; ++i) {
+				if (numCandidates == candidates.length)
+					candidates = Arrays.copyOf(candidates, 2 * numCandidates);
+				candidates[numCandidates++] = bandDocs[b][i];
+			}
+		}
+
+		Arrays.sort(candidates, 0, numCandidates);
+		int numUnique = 0;
+		for (int i = 0; i < numCandidates; ++i) {
+			if (numUnique == 0 || candidates[numUnique-1] != candidates[i])
+				candidates[numUnique++] = candidates[i];
+		}
+		return Arrays.copyOf(candidates, numUnique);
+	}
+
+	private void hash(String text, int[] hashes) {
+		long h = text.hashCode();
+		for (int i = 0; i < numHashes; ++i)
+			hashes[i] = (int) (mix(h ^ hashSeeds[i]) >>> 33);
+	}
+
+	private long bandKey(int[] signature, int band) {
+		long h = band;
+		for (int i = band * rowsPerBand; i < (band + 1) * rowsPerBand; ++i)
+			h = mix(h * 31 + signature[i]);
+		return h;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static int lowerBound(long[] keys, long key) {
+		int lo = 0, hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * title+desc term texts of every test document
+	 */
+	static String[][] queryTermSets(IndexReader testIR) throws IOException {
+		int nTestDocs = testIR.maxDoc();
+		List<Set<String>> termSets = new ArrayList<Set<String>>();
+		for (int q = 0; q < nTestDocs; ++q)
+			termSets.add(new HashSet<String>());
+		TermDocs termDocs = testIR.termDocs();
+		for (String fieldName : SIGNATURE_FIELDS) {
+			TermEnum termEnum = testIR.terms(new Term(fieldName, ""));
+			do {
+				Term t = termEnum.term();
+				if (t == null || !t.field().equals(fieldName))
+					break;
+				if (StructuredRelevanceModel.containsNumber(t.text()))
+					continue;
+				termDocs.seek(termEnum);
+				while (termDocs.next())
+					termSets.get(termDocs.doc()).add(t.text());
+			} while (termEnum.next());
+			termEnum.close();
+		}
+		termDocs.close();
+		String[][] queryTermSets = new String[nTestDocs][];
+		for (int q = 0; q < nTestDocs; ++q)
+			queryTermSets[q] = termSets.get(q).toArray(new String[0]);
+		return queryTermSets;
+	}
+
+	/**
+	 * Recall@topN against exhaustive scoring and time per query for several
+	 * signature and band counts
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int[][] configs = {{32, 8}, {64, 16}, {64, 32}, {128, 32}, {128, 64}, {256, 128}};
+		int topN = 500;
+
+		IndexReader trainIR = IndexReader.open(FSDirectory.open(new File(MultiLabelClassificationNSDL.TRAIN_INDEX_NAME)), true);
+		IndexReader testIR = IndexReader.open(FSDirectory.open(new File(MultiLabelClassificationNSDL.TEST_INDEX_NAME)), true);
+		int nTestDocs = testIR.maxDoc();
+
+		CombinedScorer scorer = CombinedScorer.create(trainIR, testIR, null);
+		String[][] queryTermSets = queryTermSets(testIR);
+
+		long t1, t2;
+		Score[][] exhaustive = new Score[nTestDocs][];
+		t1 = System.nanoTime();
+		for (int q = 0; q < nTestDocs; ++q)
+			exhaustive[q] = scorer.topK(q, topN);
+		t2 = System.nanoTime();
+		System.out.println("exhaustive: time per query: " + ((double)(t2-t1)) / 1E6 / nTestDocs + " ms");
+
+		for (int[] config : configs) {
+			t1 = System.nanoTime();
+			MinHashIndex index = new MinHashIndex(trainIR, null, config[0], config[1]);
+			t2 = System.nanoTime();
+			double buildTime = ((double)(t2-t1)) / 1E9;
+
+			double recall = 0.0;
+			long numCandidates = 0;
+			t1 = System.nanoTime();
+			for (int q = 0; q < nTestDocs; ++q) {
+				int[] candidates = index.candidates(Arrays.asList(queryTermSets[q]));
+				numCandidates += candidates.length;
+				Score[] topDocs = scorer.topK(q, candidates, topN);
+				recall += CandidateGenerator.recall(topDocs, exhaustive[q]);
+			}
+			t2 = System.nanoTime();
+			System.out.println("hashes: " + config[0] + " bands: " + config[1] +
+					" build time: " + buildTime +
+					" candidates per query: " + ((double)numCandidates) / nTestDocs +
+					" time per query: " + ((double)(t2-t1)) / 1E6 / nTestDocs + " ms" +
+					" recall@" + topN + ": " + recall / nTestDocs);
+		}
+
+		trainIR.close();
+		testIR.close();
+	}
+}
@@ -0,0 +1,208 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * The priors of several fields computed as one job, with the same values as a
+ * PriorCalculator per field. The train dictionary is enumerated once for all
+ * fields (or not at all when the postings come from a snapshot), and the term
+ * ranges of all fields are run on one pool of PriorCalculator.numThreads
+ * workers.
+ *
+ * Every term range accumulates into its own partial score matrix, which is
+ * where the memory goes. Fields are run in waves: a wave takes as many fields
+ * and as many partials per field (up to one per worker, so that a large field
+ * is still spread over all workers) as fit in HEAP_FRACTION of the free heap.
+ * Fields overlap when the heap allows it and run one at a time with fewer
+ * partials when it does not.
+ */
+class MultiFieldPriorCalculator {
+
+	static final double HEAP_FRACTION = 0.8;
+
+	IndexReader testIR;
+	IndexReader trainIR;
+	PostingsSnapshot snapshot;
+	String[] fieldNames;
+	// terms to score of every field in index order (as FieldStatistics.terms), null for all terms
+	String[][] vocabularies;
+	int numThreads = PriorCalculator.numThreads;
+
+	/**
+	 * @param snapshot train postings of the fields, null to read them from trainIR
+	 */
+	MultiFieldPriorCalculator(IndexReader testIR, IndexReader trainIR, PostingsSnapshot snapshot, String[] fieldNames) {
+		this.testIR = testIR;
+		this.trainIR = trainIR;
+		this.snapshot = snapshot;
+		this.fieldNames = fieldNames;
+	}
+
+	/**
+	 * @param vocabularies terms to score of every field, as kept by FieldStatistics.prune
+	 */
+	MultiFieldPriorCalculator(IndexReader testIR, IndexReader trainIR, PostingsSnapshot snapshot, String[] fieldNames,
+			String[][] vocabularies) {
+		this(testIR, trainIR, snapshot, fieldNames);
+		this.vocabularies = vocabularies;
+	}
+
+	/**
+	 * @return scores[field][train doc][test doc] as returned by PriorCalculator.computePriors
+	 */
+	double[][][] computePriors() throws Exception {
+
+		int numFields = fieldNames.length;
+		PriorCalculator[] calculators = prepare();
+		int nTrainDocs = calculators[0].nTrainDocs;
+		int nTestDocs = calculators[0].nTestDocs;
+		long matrixBytes = 8L * nTrainDocs * nTestDocs;
+
+		double[][][] scores = new double[numFields][][];
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			int next = 0;
+			while (next < numFields) {
+				int remaining = numFields - next;
+				long budget = (long) (HEAP_FRACTION * freeHeap());
+				int waveFields = remaining;
+				int partials = numThreads;
+				while (waveFields * partials * matrixBytes > budget && (partials > 1 || waveFields > 1)) {
+					if (partials > 1)
+						partials--;
+					else
+						waveFields--;
+				}
+				System.out.println("Priors wave: " + waveFields + " fields x " + partials + " partials of " +
+						matrixBytes + " bytes, free heap: " + freeHeap());
+				runWave(executor, calculators, next, next + waveFields, partials, scores);
+				next += waveFields;
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		return scores;
+	}
+
+	private void runWave(ExecutorService executor, PriorCalculator[] calculators, int fromField, int toField,
+			int partials, double[][][] scores) throws Exception {
+
+		double[][][][] modelScores = new double[toField - fromField][][][];
+		double[][][] baseScores = new double[toField - fromField][][];
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int f = fromField; f < toField; ++f) {
+			PriorCalculator calculator = calculators[f];
+			int numTerms = calculator.termJoin.numTerms();
+			int chunkSize = Math.max(1, (int) Math.ceil((double)numTerms / partials));
+			int numChunks = (numTerms == 0) ? 1 : (int) Math.ceil((double)numTerms / chunkSize);
+			modelScores[f - fromField] = new double[numChunks][calculator.nTrainDocs][calculator.nTestDocs];
+			baseScores[f - fromField] = new double[numChunks][calculator.nTrainDocs];
+			for (int c = 0; c < numChunks && c * chunkSize < numTerms; ++c) {
+				int fromIndex = c * chunkSize;
+				int toIndex = Math.min(numTerms, fromIndex + chunkSize) - 1;
+				futures.add(executor.submit(calculator.new PriorCalculatorRunnable(fromIndex, toIndex,
+						modelScores[f - fromField][c], baseScores[f - fromField][c])));
+			}
+		}
+		for (Future<?> future : futures)
+			future.get();
+
+		// the first partial of every field becomes its result
+		for (int f = fromField; f < toField; ++f) {
+			double[][][] partial = modelScores[f - fromField];
+			double[][] base = baseScores[f - fromField];
+			for (int i = 0; i < partial[0].length; ++i) {
+				ScoreKernels.add(partial[0][i], 0, partial[0][i].length, base[0][i]);
+				for (int c = 1; c < partial.length; ++c)
+					ScoreKernels.addRow(partial[0][i], partial[c][i], base[c][i]);
+			}
+			scores[f] = partial[0];
+			System.out.println("Priors done: " + fieldNames[f]);
+		}
+	}
+
+	/**
+	 * One calculator per field, with its terms and document lengths
+	 */
+	private PriorCalculator[] prepare() throws IOException {
+
+		int numFields = fieldNames.length;
+		PriorCalculator[] calculators = new PriorCalculator[numFields];
+		if (snapshot != null) {
+			for (int f = 0; f < numFields; ++f) {
+				PostingsSnapshot.FieldPostings postings = snapshot.field(fieldNames[f]);
+				calculators[f] = new PriorCalculator(testIR, postings);
+				String[] terms = (vocabularies != null) ? vocabularies[f] : postings.terms;
+				calculators[f].prepare(terms, postings.docLengths, postings.collectionSize);
+			}
+			return calculators;
+		}
+
+		// one pass over the dictionary routes every term to its field
+		int nTrainDocs = trainIR.numDocs();
+		List<List<String>> terms = new ArrayList<List<String>>();
+		int[][] docLengths = new int[numFields][nTrainDocs];
+		int[] collectionSizes = new int[numFields];
+		for (int f = 0; f < numFields; ++f)
+			terms.add(new ArrayList<String>());
+
+		TermEnum termEnum = trainIR.terms();
+		TermDocs termDocs = trainIR.termDocs();
+		String lastField = null;
+		int f = -1;
+		while (termEnum.next()) {
+			Term t = termEnum.term();
+			if (t.field() != lastField) {
+				lastField = t.field();
+				f = fieldIndex(lastField);
+			}
+			if (f < 0 || StructuredRelevanceModel.containsNumber(t.text()))
+				continue;
+			// pruned terms still count in the document lengths
+			if (vocabularies == null || Arrays.binarySearch(vocabularies[f], t.text()) >= 0)
+				terms.get(f).add(t.text());
+			termDocs.seek(termEnum);
+			while (termDocs.next()) {
+				int tf = termDocs.freq();
+				collectionSizes[f] += tf;
+				docLengths[f][termDocs.doc()] += tf;
+			}
+		}
+		termDocs.close();
+		termEnum.close();
+
+		for (f = 0; f < numFields; ++f) {
+			calculators[f] = new PriorCalculator(testIR, trainIR, fieldNames[f]);
+			List<String> fieldTerms = terms.get(f);
+			calculators[f].prepare(fieldTerms.toArray(new String[fieldTerms.size()]), docLengths[f], collectionSizes[f]);
+			System.out.println("Number of Terms (" + fieldNames[f] + "): " + fieldTerms.size() +
+					" in test set: " + calculators[f].termJoin.numShared);
+		}
+		return calculators;
+	}
+
+	private int fieldIndex(String field) {
+		for (int f = 0; f < fieldNames.length; ++f) {
+			if (fieldNames[f].equals(field))
+				return f;
+		}
+		return -1;
+	}
+
+	private static long freeHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+}
@@ -16,10 +16,15 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
@@ -31,10 +36,11 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.OpenBitSet;
 
-import srmdata.StructuredRelevanceModel.DescendingScoreComp;
 import srmdata.StructuredRelevanceModel.Score;
 
 public class MultiLabelClassificationNSDL {
@@ -43,7 +49,12 @@ public class MultiLabelClassificationNSDL {
 	public static final String TRAIN_INDEX_NAME = "../../multi_label_train_index";
 	public static final String PREDICTION_OUTFILE_NAME = "../../outputs/prediction_output";
 	public static final String OUTPUT_FILE_NAME = "../../outputs/output";
-	public static final String SCORE_FILE_NAME = "../../outputs/log_scores";
+	public static final String NEIGHBOR_FILE_NAME = "../../outputs/neighbors";
+	public static final String SHARD_DIR_NAME = "../../outputs/shards";
+	public static final String SPLIT_FILE_NAME = "../../outputs/split";
+	public static final String POSTINGS_SNAPSHOT_FILE_NAME = "../../outputs/train_postings";
+	public static final String PRIOR_STATE_FILE_NAME = "../../outputs/priors";
+	public static final String VOCABULARY_FILE_NAME = "../../outputs/vocabulary";
 	private static int numTesting = 200;
 	private static int numTraining = 80000;
 
@@ -52,7 +63,63 @@ public class MultiLabelClassificationNSDL {
 
 	private static Map<String,Double> time_taken;
 	private static boolean generateDataAgain = false;
-	private static final int MAX_RESULTS = 10;
+	// seed of the stratified test sample drawn when generating the data
+	private static long splitSeed = 0;
+	// read train and test documents through views of the global index selected by SPLIT_FILE_NAME
+	private static boolean useVirtualSplit = false;
+	private static DocSplit split;
+	// number of worker processes to split the train index into, 0 scores in this process
+	private static int numShards = 0;
+	// host of every shard worker, started through ssh; null or null entries run on this host
+	private static String[] shardHosts = null;
+	// train documents fetched per test document by a Lucene query before exact scoring, 0 scores all
+	private static int candidatePoolSize = 0;
+	// take the candidates from MinHash LSH over title+desc term sets instead, when lshNumBands > 0
+	private static int lshNumHashes = 64;
+	private static int lshNumBands = 0;
+	// compare the candidates with exhaustive scoring of recallSampleSize evenly spaced test documents
+	// (all if 0), after the timed scoring
+	private static boolean reportCandidateRecall = false;
+	private static int recallSampleSize = 100;
+	// score every train document in process, skipping those that cannot reach the top neighbors
+	private static boolean useMaxScore = false;
+	private static boolean verifyMaxScore = false;
+	// evaluate field weights and topN settings over cached per-field top lists instead of predicting
+	private static boolean sweepParameters = false;
+	private static int sweepListSize = 2000;
+	private static int sweepWeightSteps = 20;
+	private static int[] sweepTopNs = {50, 100, 200, 500};
+	// read the train postings of the scoring fields from a bit-packed snapshot instead of a RAMDirectory copy
+	private static boolean usePostingsSnapshot = false;
+	// score content only for the top train documents by title and desc priors, when cascadeCandidates > 0
+	private static int cascadeCandidates = 0;
+	// compare with full scoring of the content model, which costs the prior time the cascade saves
+	private static boolean reportCascadeDifferences = false;
+	// train documents kept per test document in NEIGHBOR_FILE_NAME, at least the topN of predictFields
+	private static int neighborListSize = 1000;
+	// update the priors kept in PRIOR_STATE_FILE_NAME with the documents appended to the train index
+	private static boolean updatePriorsIncrementally = false;
+	private static double maxCollectionSizeDrift = 0.01;
+	// score only the test documents added to the test index since the neighbor store was written
+	private static boolean appendTestDocuments = false;
+	// predict the records of NSDLIndex.NSDL_FILE_NAME as they are read instead of a test index
+	private static boolean classifyFeed = false;
+	private static int feedBatchSize = 256;
+	// aggregate labels only from the first normalized neighbors holding this much of the score
+	// mass, or scoring at least this fraction of the top neighbor, within the topN
+	private static double neighborScoreMass = 1.0;
+	private static double neighborScoreRatio = 0.0;
+	// score only the terms of every field in at least pruneMinDocFreq and at most pruneMaxDocFreqRatio of
+	// the train documents, the pruneMaxTerms most frequent of them if > 0, kept in VOCABULARY_FILE_NAME
+	private static int pruneMinDocFreq = 1;
+	private static double pruneMaxDocFreqRatio = 1.0;
+	private static int pruneMaxTerms = 0;
+	// report quality and prior time at each of the pruning levels {minDocFreq, maxDocFreqRatio, maxTerms}
+	private static boolean sweepPruning = false;
+	private static double[][] pruningLevels = {{1, 1.0, 0}, {2, 1.0, 0}, {3, 0.5, 0}, {5, 0.2, 0}, {2, 0.5, 5000}};
+	// storage profile of the generated train and test indices, see NSDLIndex.StorageProfile
+	private static String splitIndexProfile = "full";
+	static final int MAX_RESULTS = 10;
 
 	private static boolean shouldTokenize(String field) {
 		if (field.equals("subject"))
@@ -131,11 +198,38 @@ public class MultiLabelClassificationNSDL {
 
 		if (generateDataAgain ) {
 			t1 = System.nanoTime();		
+			if (useVirtualSplit)
+				generateSplit();
+			else
 				generateMultiLabelDataset();
 			t2 = System.nanoTime();
 			System.out.println("Time Taken for Generation: " + (t2-t1)/1E9);
 		}
 
+		if (classifyFeed) {
+			t1 = System.nanoTime();
+				classifyFeed(new String[] {"subject", "audience", "educationLevel"});
+			t2 = System.nanoTime();
+			System.out.println("Time Taken for Feed Classification: " + (t2-t1)/1E9);
+			return;
+		}
+
+		if (sweepPruning) {
+			t1 = System.nanoTime();
+				runPruningSweep(new String[] {"subject", "audience", "educationLevel"});
+			t2 = System.nanoTime();
+			System.out.println("Time Taken for Pruning Sweep: " + (t2-t1)/1E9);
+			return;
+		}
+
+		if (sweepParameters) {
+			t1 = System.nanoTime();
+				runParameterSweep(new String[] {"subject", "audience", "educationLevel"});
+			t2 = System.nanoTime();
+			System.out.println("Time Taken for Parameter Sweep: " + (t2-t1)/1E9);
+			return;
+		}
+
 		List<PredictionResult> results_subject = new ArrayList<PredictionResult>();
 		List<PredictionResult> results_audience = new ArrayList<PredictionResult>();
 		List<PredictionResult> results_educationLevel = new ArrayList<PredictionResult>();
@@ -150,95 +244,65 @@ public class MultiLabelClassificationNSDL {
 		t2 = System.nanoTime();
 		System.out.println("Time Taken for Subject Prediction: " + (t2-t1)/1E9);
 
-		BufferedWriter writer;
-		writer = new BufferedWriter(new FileWriter(OUTPUT_FILE_NAME + "_" + numTesting + "_" + numTraining + "_subject"));
-		dumpOutput(writer, results_subject);
-		writer.flush();
-		writer.close();
-
-		writer = new BufferedWriter(new FileWriter(OUTPUT_FILE_NAME + "_" + numTesting + "_" + numTraining + "_audience"));
-		dumpOutput(writer, results_audience);
-		writer.flush();
-		writer.close();
-
-		writer = new BufferedWriter(new FileWriter(OUTPUT_FILE_NAME + "_" + numTesting + "_" + numTraining + "_educationLevel"));
-		dumpOutput(writer, results_educationLevel);
-		writer.flush();
-		writer.close();
+		Map<String, Double> coverage = countCoverage();
+		for (String fieldName : new String[] {"subject", "audience", "educationLevel"}) {
+			t1 = System.nanoTime();
+			Evaluation evaluation = EvaluationEngine.evaluate(predMap.get(fieldName), PriorCalculator.numThreads);
+			t2 = System.nanoTime();
+			System.out.println("Time Taken for Evaluation (" + fieldName + "): " + (t2-t1)/1E9);
 
+			BufferedWriter writer = new BufferedWriter(new FileWriter(OUTPUT_FILE_NAME + "_" + numTesting + "_" + numTraining + "_" + fieldName));
+			dumpOutput(writer, coverage, predMap.get(fieldName), evaluation);
+			writer.flush();
+			writer.close();
+		}
 	}
 
-	private static void dumpOutput(BufferedWriter writer, List<PredictionResult> results) throws IOException {
-
-		File trainFile = new File(TRAIN_INDEX_NAME);
-		File testFile = new File(TEST_INDEX_NAME);
-
-		IndexReader trainIR = IndexReader.open(FSDirectory.open(trainFile), true);
-		IndexReader testIR = IndexReader.open(FSDirectory.open(testFile), true);
+	/**
+	 * Number of train and test documents having each field, counted once for all reports
+	 */
+	private static Map<String, Double> countCoverage() throws IOException {
 
+		IndexReader trainIR = openTrainReader(false);
+		IndexReader testIR = openTestReader(false);
 		numTesting = testIR.numDocs();
-		// first search for all documents having at least one value for each of
-		// content, description, title, subject, audience fields
 		IndexSearcher searcher1 = new IndexSearcher(trainIR);
 		IndexSearcher searcher2 = new IndexSearcher(testIR);
 
-		NumericRangeQuery<Integer> nq = NumericRangeQuery.newIntRange("num_subject", 1, 100000, true, true);
-		TopDocs t1 = searcher1.search(nq, trainIR.numDocs());
-		TopDocs t2 = searcher2.search(nq, testIR.numDocs());
-		ScoreDoc[] hits1 = t1.scoreDocs;
-		ScoreDoc[] hits2 = t2.scoreDocs;
-		double docCount = hits1.length + hits2.length;
-		double percentage = (docCount/(numTesting+numTraining));
-		writer.append("Number of documents having subject: " + docCount + " 	percentage: " +  percentage + "\n");
-
-		nq = NumericRangeQuery.newIntRange("title_len", 1, 100000, true, true);
-		t1 = searcher1.search(nq, trainIR.numDocs());
-		t2 = searcher2.search(nq, testIR.numDocs());
-		hits1 = t1.scoreDocs;
-		hits2 = t2.scoreDocs;
-		docCount = hits1.length + hits2.length;
-		percentage = (docCount/(numTesting+numTraining));
-		writer.append("Number of documents having title: " + docCount + " 	percentage: " +  percentage + "\n");
-
-		nq = NumericRangeQuery.newIntRange("desc_len", 1, 100000, true, true);
-		t1 = searcher1.search(nq, trainIR.numDocs());
-		t2 = searcher2.search(nq, testIR.numDocs());
-		hits1 = t1.scoreDocs;
-		hits2 = t2.scoreDocs;
-		docCount = hits1.length + hits2.length;
-		percentage = (docCount/(numTesting+numTraining));
-		writer.append("Number of documents having description: " + docCount + " 	percentage: " +  percentage + "\n");
-
-		nq = NumericRangeQuery.newIntRange("content_len", 1, 100000, true, true);
-		t1 = searcher1.search(nq, trainIR.numDocs());
-		t2 = searcher2.search(nq, testIR.numDocs());
-		hits1 = t1.scoreDocs;
-		hits2 = t2.scoreDocs;
-		docCount = hits1.length + hits2.length;
-		percentage = (docCount/(numTesting+numTraining));
-		writer.append("Number of documents having content: " + docCount + " 	percentage: " +  percentage + "\n");
-
-		nq = NumericRangeQuery.newIntRange("num_audience", 1, 100000, true, true);
-		t1 = searcher1.search(nq, trainIR.numDocs());
-		t2 = searcher2.search(nq, testIR.numDocs());
-		hits1 = t1.scoreDocs;
-		hits2 = t2.scoreDocs;
-		docCount = hits1.length + hits2.length;
-		percentage = (docCount/(numTesting+numTraining));
-		writer.append("Number of documents having audience: " + docCount + " 	percentage: " +  percentage + "\n");
-
-		nq = NumericRangeQuery.newIntRange("num_educationLevel", 1, 100000, true, true);
-		t1 = searcher1.search(nq, trainIR.numDocs());
-		t2 = searcher2.search(nq, testIR.numDocs());
-		hits1 = t1.scoreDocs;
-		hits2 = t2.scoreDocs;
-		docCount = hits1.length + hits2.length;
-		percentage = (docCount/(numTesting+numTraining));
-		writer.append("Number of documents having educationLevel: " + docCount + " 	percentage: " +  percentage + "\n");
+		// report name and numeric field counting the values of each field
+		String[][] coverageFields = {
+				{"subject", "num_subject"},
+				{"title", "title_len"},
+				{"description", "desc_len"},
+				{"content", "content_len"},
+				{"audience", "num_audience"},
+				{"educationLevel", "num_educationLevel"}};
+		Map<String, Double> coverage = new LinkedHashMap<String, Double>();
+		for (String[] coverageField : coverageFields) {
+			NumericRangeQuery<Integer> nq = NumericRangeQuery.newIntRange(coverageField[1], 1, 100000, true, true);
+			TotalHitCountCollector hits1 = new TotalHitCountCollector();
+			TotalHitCountCollector hits2 = new TotalHitCountCollector();
+			searcher1.search(nq, hits1);
+			searcher2.search(nq, hits2);
+			coverage.put(coverageField[0], (double) (hits1.getTotalHits() + hits2.getTotalHits()));
+		}
 
+		searcher1.close();
+		searcher2.close();
 		trainIR.close();
 		testIR.close();
-		
+		return coverage;
+	}
+
+	private static void dumpOutput(BufferedWriter writer, Map<String, Double> coverage,
+			List<PredictionResult> results, Evaluation evaluation) throws IOException {
+
+		for (Map.Entry<String, Double> fieldCount : coverage.entrySet()) {
+			double docCount = fieldCount.getValue();
+			double percentage = (docCount/(numTesting+numTraining));
+			writer.append("Number of documents having " + fieldCount.getKey() + ": " + docCount + " 	percentage: " +  percentage + "\n");
+		}
+
 		writer.append("num_testing:" + numTesting + "\n");
 		for (int docID : testDocIDs)
 			writer.append(docID + ";");
@@ -254,9 +318,6 @@ public class MultiLabelClassificationNSDL {
 		for (Map.Entry<String, Double> ttaken : time_taken.entrySet())
 			writer.append("time_taken: " + ttaken.getKey() + " : " + ttaken.getValue() + "\n");
 
-		double[] precisionAtK = new double[MAX_RESULTS];
-		double map_score = 0;
-
 		writer.append("prediction_results: " + numTesting + "\n");
 		for (PredictionResult result : results) {
 
@@ -270,112 +331,88 @@ public class MultiLabelClassificationNSDL {
 			writer.append("predictedValues: " + result.getPredictedValues().size() + "\n");
 			for (String predictedValue : result.getPredictedValues())
 				writer.append("\t\t" + predictedValue + "\n");
-
-
-			List<List<String>> predictedTokenList = result.getPredictedTokenList();
-
-			double relevance = 0;
-			double fractional_correct = 0;
-
-			int nRelevant = 0;
-			// each result in the predicted field values
-			for (int rank = 1; rank <= predictedTokenList.size(); ++rank) {
-
-				List<String> tokens = predictedTokenList.get(rank-1);
-				// fraction of tokens matched
-				double fracToken = 0;
-				for (String token : tokens) {
-					if (result.isRelevant(token)) {
-						fracToken++;
-					}
-				}
-				if (tokens.size() == 0)
-					continue;
-				fracToken = fracToken / tokens.size();
-
-				if (fracToken > 0.0) {
-					fractional_correct += fracToken;
-					nRelevant++;
-				}
-
-				relevance += fracToken;
-				precisionAtK[rank-1] += ((double)relevance) / rank;
-				for (int i = 0; i < precisionAtK.length; ++i) {
-					writer.append(precisionAtK[i] + " ");
-				}
-				writer.append("\n");
-			}
-
-			if (relevance != 0)
-				map_score = map_score + fractional_correct / nRelevant; 
 		}
+		writer.append("\n");
+
+		System.out.println("MAP Score: " + evaluation.map());
+		writer.append("MAP: " + evaluation.map() + "\n");
 
-		map_score = map_score / numTesting;
-		
-		System.out.println("MAP Score: " + map_score);
 		System.out.println("Precison@K: ");
 		writer.append("Precison@K: ");
-		for (int i = 0; i < precisionAtK.length; ++i) {
-			precisionAtK[i] = precisionAtK[i] / results.size();
-			System.out.print(precisionAtK[i] + " ");
-			writer.append(precisionAtK[i] + " ");
+		for (double precision : evaluation.precisionAtK()) {
+			System.out.print(precision + " ");
+			writer.append(precision + " ");
 		}
 		System.out.println();
 		writer.append("\n");
+
+		writer.append("nDCG@K: ");
+		for (double ndcg : evaluation.ndcgAtK())
+			writer.append(ndcg + " ");
+		writer.append("\n");
+
+		for (Map.Entry<String, double[]> label : evaluation.labelPrecisionRecall().entrySet())
+			writer.append("label: " + label.getKey() + "	precision: " + label.getValue()[0] + "	recall: " + label.getValue()[1] + "\n");
 	}
 
 	private static void predictFields(Map<String, List<PredictionResult>> fieldsToPredict) throws Exception {
 
-		RAMDirectory trainRAMDirectory = new RAMDirectory(FSDirectory.open(new File(TRAIN_INDEX_NAME))); 
-		RAMDirectory testRAMDirectory = new RAMDirectory(FSDirectory.open(new File(TEST_INDEX_NAME))); 
-		IndexReader trainIR = IndexReader.open(trainRAMDirectory, true);
-		IndexReader testIR  = IndexReader.open(testRAMDirectory, true);
+		if (numShards > 0) {
+			predictFieldsSharded(fieldsToPredict);
+			return;
+		}
+		if (candidatePoolSize > 0 || lshNumBands > 0) {
+			predictFieldsTwoStage(fieldsToPredict);
+			return;
+		}
+		if (useMaxScore) {
+			predictFieldsMaxScore(fieldsToPredict);
+			return;
+		}
+		if (cascadeCandidates > 0) {
+			predictFieldsCascade(fieldsToPredict);
+			return;
+		}
 
-		int nTrainDocs = trainIR.numDocs();
-		int nTestDocs = testIR.numDocs();
+		IndexReader trainIR = openTrainReader(!usePostingsSnapshot);
+		IndexReader testIR  = openTestReader(true);
 
 		long t1, t2;
 		double ttaken;
 
-		double[][][] scores;
-		int num_fields = 3;
-		if (generateDataAgain) {
-			scores = new double[num_fields][][];
-	//		StructuredRelevanceModel srm = new StructuredRelevanceModel();
-			t1 = System.nanoTime();
-	//		scores[0] = srm.computePriors(testIR, trainIR, "title");
-			PriorCalculator priorCalcTitle = new PriorCalculator(testIR, trainIR, "title");
-			scores[0] = priorCalcTitle.computePriors();
-			priorCalcTitle = null;
-			t2 = System.nanoTime();
-			ttaken = ((double)(t2-t1)) / 1E9;
-			System.out.println("Time Taken Priors (title): " + ttaken);
-			time_taken.put("title_model", ttaken);
-	
-			t1 = System.nanoTime();
-	//			scores[1] = srm.computePriors(testIR, trainIR, "desc");
-			PriorCalculator priorCalcDesc = new PriorCalculator(testIR, trainIR, "desc");
-			scores[1] = priorCalcDesc.computePriors();
-			priorCalcDesc = null;
-			t2 = System.nanoTime();
-			ttaken = ((double)(t2-t1)) / 1E9;
-			System.out.println("Time Taken Priors (desc): " + ttaken);
-			time_taken.put("desc_model", ttaken);
-	
+		NeighborStore store;
+		if (appendTestDocuments) {
+			store = appendTestDocuments(trainIR, testIR);
+		}
+		else if (updatePriorsIncrementally) {
+			double[][][] scores = updatePriors(trainIR, testIR);
+			store = NeighborStore.select(scores, CombinedScorer.FIELD_WEIGHTS, neighborListSize);
+			scores = null;
+			writeNeighbors(store);
+		}
+		else if (generateDataAgain) {
+			PostingsSnapshot snapshot = null;
+			if (usePostingsSnapshot)
+				snapshot = writePostingsSnapshot(trainIR);
+			// all scoring fields in one job, sharing the dictionary pass and the workers
 			t1 = System.nanoTime();
-	//			scores[2] = srm.computePriors(testIR, trainIR, "content");
-			PriorCalculator priorCalcContent = new PriorCalculator(testIR, trainIR, "content");
-			scores[2] = priorCalcContent.computePriors();
-			priorCalcContent = null;
+			String[][] vocabularies = vocabularies(trainIR, new FieldStatistics[CombinedScorer.SCORING_FIELDS.length],
+					new double[] {pruneMinDocFreq, pruneMaxDocFreqRatio, pruneMaxTerms});
+			MultiFieldPriorCalculator priorCalc = new MultiFieldPriorCalculator(testIR, trainIR, snapshot,
+					CombinedScorer.SCORING_FIELDS, vocabularies);
+			double[][][] scores = priorCalc.computePriors();
+			priorCalc = null;
 			t2 = System.nanoTime();
 			ttaken = ((double)(t2-t1)) / 1E9;
-			System.out.println("Time Taken Priors (content): " + ttaken);
-			time_taken.put("content_model", ttaken);
-	
-			dumpScores(scores);
+			System.out.println("Time Taken Priors (all fields): " + ttaken);
+			time_taken.put("priors", ttaken);
+
+			store = NeighborStore.select(scores, CombinedScorer.FIELD_WEIGHTS, neighborListSize);
+			scores = null;
+			writeNeighbors(store);
 		}
 		else {
-			scores = readScores();
+			store = readNeighbors();
 		}
 
 		double avg_title_len = findAverageFieldLength(trainIR, "title");
@@ -386,165 +423,712 @@ public class MultiLabelClassificationNSDL {
 		System.out.println("avg_desc_len: " + avg_desc_len);
 		System.out.println("avg_content_len: " + avg_content_len);
 
-		for (String fieldToPredict : fieldsToPredict.keySet()) {
-			List<PredictionResult> results = fieldsToPredict.get(fieldToPredict);
-			Score[][] combined_score = new Score[nTestDocs][nTrainDocs];
-			for (int i = 0; i < nTestDocs; ++i) {
-				for (int j = 0; j < nTrainDocs; ++j) {
-					combined_score[i][j] = new Score();
+		int topN = 500;
+		t1 = System.nanoTime();
+		Score[][] neighbors = store.rank(CombinedScorer.FIELD_WEIGHTS, topN);
+		t2 = System.nanoTime();
+		System.out.println("Time Taken Ranking: " + ((double)(t2-t1)) / 1E9);
+
+		t1 = System.nanoTime();
+		predictFromNeighbors(fieldsToPredict, neighbors, topN, trainIR, testIR);
+		t2 = System.nanoTime();
+		System.out.println("Time Taken Label Aggregation: " + ((double)(t2-t1)) / 1E9);
+
+		trainIR.close();
+		testIR.close();
+	}
+
+	/**
+	 * Bring the priors of every scoring field kept in PRIOR_STATE_FILE_NAME up
+	 * to date with the documents appended to the train index since, computing
+	 * them in full when there are none yet or the collection size drifted by
+	 * more than maxCollectionSizeDrift
+	 */
+	private static double[][][] updatePriors(IndexReader trainIR, IndexReader testIR) throws Exception {
+
+		// train documents are appended in this mode, the counts name the neighbor store and the outputs
+		numTraining = trainIR.maxDoc();
+		numTesting = testIR.maxDoc();
+		String[] fieldNames = CombinedScorer.SCORING_FIELDS;
+		double[][][] scores = new double[fieldNames.length][][];
+		long t1 = System.nanoTime();
+		for (int f = 0; f < fieldNames.length; ++f) {
+			File file = new File(PRIOR_STATE_FILE_NAME + "_" + fieldNames[f]);
+			IncrementalPriors priors = null;
+			if (file.exists()) {
+				priors = IncrementalPriors.read(file);
+				int nOldDocs = priors.numTrainDocs();
+				if (priors.update(trainIR, testIR, maxCollectionSizeDrift)) {
+					System.out.println("Priors (" + fieldNames[f] + ") updated with " + (trainIR.maxDoc() - nOldDocs) +
+							" documents, changed terms: " + priors.numChangedTerms + " collection size drift: " +
+							priors.drift(priors.stats.collectionSize));
 				}
-			}
-	
-			for (int i = 0; i < nTrainDocs; ++i) {
-				for (int j = 0; j < nTestDocs; ++j) {
-					combined_score[j][i].docID = i;
-//					combined_score[j][i].score = (1.0/avg_title_len)*Math.log(scores[0][i][j]) +
-//							(1.0/avg_desc_len)*Math.log(scores[1][i][j]) + (1.0/avg_content_len)*Math.log(scores[2][i][j]);
-//					combined_score[j][i].score = Math.exp(combined_score[j][i].score);
-					combined_score[j][i].score = 
-							scores[0][i][j] * 0.45 +
-							scores[1][i][j] * 0.45 +
-							scores[2][i][j] * 0.10;
-					combined_score[j][i].score = Math.pow(10.0, combined_score[j][i].score);
-	//				if (scores[1][i][j] == 0.0) {
-	//					System.out.print("Score is Zero: " + i + " " + j + " ");
-	//				}
+				else {
+					priors = null;
 				}
 			}
-	
-			t1 = System.nanoTime();
-			DescendingScoreComp comp = new DescendingScoreComp();
-			for (int i = 0; i < nTestDocs; ++i) {
-				Arrays.sort(combined_score[i], comp);
+			if (priors == null) {
+				System.out.println("Priors (" + fieldNames[f] + ") computed in full");
+				priors = IncrementalPriors.compute(trainIR, testIR, fieldNames[f]);
 			}
-	
-			int topN = 500;
-			for (int i = 0; i < nTestDocs; ++i) {
-				double total_score = 0.0;
-				for (int j = 0; j < topN; ++j) {
-					total_score += combined_score[i][j].score;
-				}
-	
-				if (total_score == 0.0) {
-					for (int j = 0; j < topN; ++j)
-						combined_score[i][j].score = 0.0;
-				}
-				else {
-					for (int j = 0; j < topN; ++j)
-						combined_score[i][j].score /= total_score;
-				}
+			priors.write(file);
+			scores[f] = priors.scores;
+		}
+		long t2 = System.nanoTime();
+		double ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Time Taken Priors (incremental): " + ttaken);
+		time_taken.put("priors", ttaken);
+		return scores;
+	}
+
+	/**
+	 * Export the postings of the scoring fields of the train index and map them
+	 */
+	private static PostingsSnapshot writePostingsSnapshot(IndexReader trainIR) throws IOException {
+		long t1 = System.nanoTime();
+		File file = new File(POSTINGS_SNAPSHOT_FILE_NAME);
+		PostingsSnapshot.write(trainIR, new String[] {"title", "desc", "content"}, file);
+		PostingsSnapshot snapshot = PostingsSnapshot.open(file);
+		long t2 = System.nanoTime();
+		double ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Time Taken Postings Snapshot: " + ttaken + " size: " + file.length());
+		time_taken.put("postings_snapshot", ttaken);
+		return snapshot;
+	}
+
+	/**
+	 * Scale the scores of the first topN entries of every (sorted) row to sum to one
+	 */
+	static void normalizeScores(Score[][] combined_score, int topN) {
+		for (int i = 0; i < combined_score.length; ++i) {
+			int n = Math.min(topN, combined_score[i].length);
+			double total_score = 0.0;
+			for (int j = 0; j < n; ++j) {
+				total_score += combined_score[i][j].score;
 			}
-			t2 = System.nanoTime();
-			System.out.println("Time Taken Normalization and Sorting: " + ((double)(t2-t1)) / 1E9);
-	
-			Map<String,Double> fieldCounts = new HashMap<String,Double>();
-			for (int i = 0; i < nTestDocs; ++i) {
-				fieldCounts.clear();
-				for (int j = 0; j < topN; ++j) {
-					int docID = combined_score[i][j].docID;
-					combined_score[i][j].relevance = 0.0;
-					Document doc = trainIR.document(docID);
-					Fieldable[] fields = doc.getFieldables(fieldToPredict);
-					for (Fieldable field : fields) {
-						String fieldValue = field.stringValue();
-						Double count = fieldCounts.get(fieldValue);
-						if (count == null)
-							count = 1.0 * combined_score[i][j].score;
-						else
-							count = count + combined_score[i][j].score;
-						fieldCounts.put(fieldValue, count);
+
+			if (total_score == 0.0) {
+				for (int j = 0; j < n; ++j)
+					combined_score[i][j].score = 0.0;
+			}
+			else {
+				for (int j = 0; j < n; ++j)
+					combined_score[i][j].score /= total_score;
+			}
+		}
+	}
+
+	/**
+	 * Number of neighbors to aggregate out of a sorted, normalized row: the
+	 * fewest reaching the given cumulative score mass, stopping before the
+	 * first neighbor scoring below ratio times the top one, and at most topN.
+	 * A mass of 1 or more keeps every neighbor, whatever the rounding of the sum.
+	 */
+	static int neighborCutoff(Score[] neighbors, int topN, double mass, double ratio) {
+		int n = Math.min(topN, neighbors.length);
+		if (n == 0)
+			return 0;
+		double minScore = ratio * neighbors[0].score;
+		double cumulative = 0.0;
+		for (int j = 0; j < n; ++j) {
+			if (neighbors[j].score < minScore)
+				return Math.max(1, j);
+			cumulative += neighbors[j].score;
+			if (mass < 1.0 && cumulative >= mass)
+				return j + 1;
+		}
+		return n;
+	}
+
+	/**
+	 * Cut every normalized row to the neighbors selected by neighborScoreMass and neighborScoreRatio
+	 * @return the number of neighbors kept over all rows
+	 */
+	static long cutNeighbors(Score[][] combined_score, int topN) {
+		long numKept = 0;
+		for (int i = 0; i < combined_score.length; ++i) {
+			int n = neighborCutoff(combined_score[i], topN, neighborScoreMass, neighborScoreRatio);
+			if (n < combined_score[i].length)
+				combined_score[i] = Arrays.copyOf(combined_score[i], n);
+			numKept += n;
+		}
+		return numKept;
+	}
+
+	/**
+	 * Predict the values of all fields for every test document from the labels
+	 * of its topN normalized neighbors. Every neighbor is read once for all
+	 * fields, and the test documents are split among PriorCalculator.numThreads
+	 * workers.
+	 */
+	private static void predictAllFields(Map<String, List<PredictionResult>> fieldsToPredict,
+			final Score[][] neighbors, final int topN, final IndexReader trainIR, final IndexReader testIR) throws Exception {
+
+		final String[] fieldNames = fieldsToPredict.keySet().toArray(new String[fieldsToPredict.size()]);
+		final int nTestDocs = neighbors.length;
+		final PredictionResult[][] predictions = new PredictionResult[fieldNames.length][nTestDocs];
+		final MapFieldSelector labelSelector = new MapFieldSelector(fieldNames);
+
+		int numThreads = PriorCalculator.numThreads;
+		int chunkSize = (int) Math.ceil((double)nTestDocs / numThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int from = 0; from < nTestDocs; from += chunkSize) {
+			final int fromDoc = from;
+			final int toDoc = Math.min(nTestDocs, from + chunkSize);
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					List<Map<String,Double>> fieldCounts = new ArrayList<Map<String,Double>>();
+					for (int f = 0; f < fieldNames.length; ++f)
+						fieldCounts.add(new HashMap<String,Double>());
+					for (int i = fromDoc; i < toDoc; ++i) {
+						for (Map<String,Double> counts : fieldCounts)
+							counts.clear();
+						int n = Math.min(topN, neighbors[i].length);
+						for (int j = 0; j < n; ++j) {
+							Score neighbor = neighbors[i][j];
+							Document doc = trainIR.document(neighbor.docID, labelSelector);
+							for (int f = 0; f < fieldNames.length; ++f) {
+								Map<String,Double> counts = fieldCounts.get(f);
+								for (String fieldValue : doc.getValues(fieldNames[f])) {
+									Double count = counts.get(fieldValue);
+									counts.put(fieldValue, (count == null) ? neighbor.score : count + neighbor.score);
+								}
+							}
+						}
+
+						Document testDoc = testIR.document(i);
+						for (int f = 0; f < fieldNames.length; ++f)
+							predictions[f][i] = predictionResult(fieldNames[f], i, testDoc.get("URI"),
+									testDoc.getValues(fieldNames[f]), fieldCounts.get(f));
 					}
+					return null;
 				}
-	
-				List<Relevance> relevanceModel = new ArrayList<Relevance>();
-				for (String fieldValue : fieldCounts.keySet()) {
-					Relevance relevance = new Relevance();
-					relevance.fieldValue = fieldValue;
-					relevance.score = fieldCounts.get(fieldValue);
-					relevanceModel.add(relevance);
-				}
-				Collections.sort(relevanceModel, new DescendingRelevanceComp());
-	
-				Document testDoc = testIR.document(i);
-	
-				PredictionResult result = new PredictionResult(testDoc.get("URI"));
-//				System.out.println("docID:" + i + "      URI:" + testDoc.get("URI") + "       ID:" + testDoc.get("id"));
-				for (Fieldable fieldable : testDoc.getFieldables(fieldToPredict)) {
-					String actualValue = fieldable.stringValue();
-//					System.out.print(actualValue + ":");
-					result.addActualValue(actualValue, shouldTokenize(fieldToPredict));
-				}
-//				System.out.println(":");
-//				System.out.print("*");
-				result.docID = i;
-				int max = (relevanceModel.size() < 10) ? relevanceModel.size() : 10;
-				for (int j = 0; j < max; ++j) {
-					Relevance relevance = relevanceModel.get(j);
-					String predictedValue = relevance.fieldValue;
-//					System.out.println("    " + predictedValue + "(" + relevance.score + ");");
-					result.addPredictedValue(predictedValue, shouldTokenize(fieldToPredict));
-				}
-	
-				results.add(result);
-//				System.out.println();
+			}));
+		}
+		try {
+			for (Future<Void> future : futures)
+				future.get();
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		for (int f = 0; f < fieldNames.length; ++f)
+			fieldsToPredict.get(fieldNames[f]).addAll(Arrays.asList(predictions[f]));
+	}
+
+	/**
+	 * Result of one test document predicting the field values with the highest
+	 * accumulated neighbor weight
+	 */
+	static PredictionResult predictionResult(String fieldToPredict, int docID, String URI,
+			String[] actualValues, Map<String,Double> fieldCounts) {
+
+		List<Relevance> relevanceModel = new ArrayList<Relevance>();
+		for (String fieldValue : fieldCounts.keySet()) {
+			Relevance relevance = new Relevance();
+			relevance.fieldValue = fieldValue;
+			relevance.score = fieldCounts.get(fieldValue);
+			relevanceModel.add(relevance);
+		}
+		Collections.sort(relevanceModel, new DescendingRelevanceComp());
+
+		PredictionResult result = new PredictionResult(URI);
+		for (String actualValue : actualValues) {
+//			System.out.print(actualValue + ":");
+			result.addActualValue(actualValue, shouldTokenize(fieldToPredict));
+		}
+		result.docID = docID;
+		int max = (relevanceModel.size() < 10) ? relevanceModel.size() : 10;
+		for (int j = 0; j < max; ++j) {
+			Relevance relevance = relevanceModel.get(j);
+			String predictedValue = relevance.fieldValue;
+//			System.out.println("    " + predictedValue + "(" + relevance.score + ");");
+			result.addPredictedValue(predictedValue, shouldTokenize(fieldToPredict));
+		}
+		return result;
+	}
+
+	/**
+	 * Score the test documents against shards of the train index in separate
+	 * worker processes and predict from the merged top neighbors
+	 */
+	private static void predictFieldsSharded(Map<String, List<PredictionResult>> fieldsToPredict) throws Exception {
+
+		// the workers open the physical train and test indexes
+		if (useVirtualSplit)
+			throw new IllegalStateException("Sharded scoring needs the train and test indexes, not a virtual split");
+
+		// labels are read from disk, the train index is scanned by the workers
+		IndexReader trainIR = openTrainReader(false);
+		IndexReader testIR = openTestReader(false);
+
+		int topN = 500;
+		long t1, t2;
+		double ttaken;
+
+		t1 = System.nanoTime();
+		ShardCoordinator coordinator = new ShardCoordinator(TRAIN_INDEX_NAME, TEST_INDEX_NAME, numShards, topN,
+				new File(SHARD_DIR_NAME), shardHosts);
+		Score[][] combined_score = coordinator.run();
+		t2 = System.nanoTime();
+		ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Time Taken Sharded Scoring: " + ttaken);
+		time_taken.put("sharded_model", ttaken);
+
+		predictFromNeighbors(fieldsToPredict, combined_score, topN, trainIR, testIR);
+
+		trainIR.close();
+		testIR.close();
+	}
+
+	/**
+	 * Score only the candidates fetched by a Lucene query over the title and desc
+	 * terms of each test document (or by LSH over the same terms) and predict
+	 * from the top neighbors among them
+	 */
+	private static void predictFieldsTwoStage(Map<String, List<PredictionResult>> fieldsToPredict) throws Exception {
+
+		IndexReader trainIR = openTrainReader(true);
+		IndexReader testIR  = openTestReader(true);
+
+		int nTestDocs = testIR.numDocs();
+		int topN = 500;
+		long t1, t2;
+		double ttaken;
+
+		t1 = System.nanoTime();
+		CombinedScorer scorer = CombinedScorer.create(trainIR, testIR, null);
+		CandidateGenerator generator = null;
+		MinHashIndex lshIndex = null;
+		String[][] queryTermSets = null;
+		if (lshNumBands > 0) {
+			lshIndex = new MinHashIndex(trainIR, null, lshNumHashes, lshNumBands);
+			queryTermSets = MinHashIndex.queryTermSets(testIR);
+		}
+		else {
+			FieldStatistics[] queryStats = {scorer.scorers[0].stats, scorer.scorers[1].stats};
+			generator = new CandidateGenerator(trainIR, testIR, queryStats, candidatePoolSize);
+		}
+
+		Score[][] combined_score = new Score[nTestDocs][];
+		long numCandidates = 0;
+		for (int i = 0; i < nTestDocs; ++i) {
+			int[] candidates;
+			if (lshIndex != null)
+				candidates = lshIndex.candidates(Arrays.asList(queryTermSets[i]));
+			else
+				candidates = generator.candidates(i);
+			numCandidates += candidates.length;
+			combined_score[i] = scorer.topK(i, candidates, topN);
+		}
+		if (generator != null)
+			generator.close();
+		t2 = System.nanoTime();
+		ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Time Taken Two Stage Scoring: " + ttaken);
+		time_taken.put("two_stage_model", ttaken);
+		System.out.println("Average candidates per test document: " + ((double)numCandidates) / nTestDocs);
+		if (reportCandidateRecall) {
+			int step = (recallSampleSize > 0) ? Math.max(1, nTestDocs / recallSampleSize) : 1;
+			double recall = 0.0;
+			int numSampled = 0;
+			for (int i = 0; i < nTestDocs; i += step) {
+				recall += CandidateGenerator.recall(combined_score[i], scorer.topK(i, topN));
+				numSampled++;
 			}
+			System.out.println("Recall@" + topN + " against exhaustive scoring of " + numSampled + " test documents: " +
+					recall / Math.max(1, numSampled));
 		}
 
+		predictFromNeighbors(fieldsToPredict, combined_score, topN, trainIR, testIR);
+
 		trainIR.close();
 		testIR.close();
 	}
 
-	private static void dumpScores(double[][][] scores) throws Exception {
-		BufferedWriter writer = new BufferedWriter(new FileWriter(new File(SCORE_FILE_NAME + "_" + numTesting + "_" + numTraining)));
-		writer.write(numTraining + " " + numTesting + "\n");
-		for (int i = 0; i < scores.length; ++i) {
-			for (int j = 0; j < scores[i].length; ++j) {
-				for (int k = 0; k < scores[i][j].length; ++k) {
-					writer.write(" " + scores[i][j][k]);
-				}
-				writer.write("\n");
+	/**
+	 * Find the exact top neighbors of every test document with the sparse model,
+	 * skipping train documents whose score bound cannot reach the top neighbors
+	 */
+	private static void predictFieldsMaxScore(Map<String, List<PredictionResult>> fieldsToPredict) throws Exception {
+
+		IndexReader trainIR = openTrainReader(true);
+		IndexReader testIR  = openTestReader(true);
+
+		int nTestDocs = testIR.numDocs();
+		int topN = 500;
+		long t1, t2;
+		double ttaken;
+
+		t1 = System.nanoTime();
+		CombinedScorer scorer = CombinedScorer.create(trainIR, testIR, null);
+		MaxScoreEvaluator evaluator = new MaxScoreEvaluator(scorer);
+
+		Score[][] combined_score = new Score[nTestDocs][];
+		long totalScored = 0;
+		int numMismatches = 0;
+		for (int i = 0; i < nTestDocs; ++i) {
+			combined_score[i] = evaluator.topK(i, topN);
+			totalScored += evaluator.numScored;
+			System.out.println("docID: " + i + " scored: " + evaluator.numScored + " skipped: " + evaluator.numSkipped);
+			if (verifyMaxScore) {
+				Score[] exhaustive = scorer.topK(i, topN);
+				if (CandidateGenerator.recall(combined_score[i], exhaustive) < 1.0)
+					numMismatches++;
 			}
 		}
-		writer.flush();
+		t2 = System.nanoTime();
+		ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Time Taken MaxScore Scoring: " + ttaken);
+		time_taken.put("max_score_model", ttaken);
+		System.out.println("Average documents scored: " + ((double)totalScored) / nTestDocs + " out of " + trainIR.numDocs());
+		if (verifyMaxScore)
+			System.out.println("Test documents with top neighbors different from exhaustive scoring: " + numMismatches);
+
+		predictFromNeighbors(fieldsToPredict, combined_score, topN, trainIR, testIR);
+
+		trainIR.close();
+		testIR.close();
+	}
+
+	/**
+	 * Compute the title and desc priors, keep the cascadeCandidates train
+	 * documents with the highest weighted sum of both per test document and add
+	 * the content model for those only, through the sparse scorer. The final
+	 * neighbors can differ from full scoring when a document outside the
+	 * candidates would have been lifted into the top neighbors by its content.
+	 */
+	private static void predictFieldsCascade(Map<String, List<PredictionResult>> fieldsToPredict) throws Exception {
+
+		IndexReader trainIR = openTrainReader(true);
+		IndexReader testIR  = openTestReader(true);
+
+		int nTrainDocs = trainIR.numDocs();
+		int nTestDocs = testIR.numDocs();
+		int topN = 500;
+		double[] weights = CombinedScorer.FIELD_WEIGHTS;
+		long t1, t2;
+		double ttaken;
+
+		t1 = System.nanoTime();
+		String[] firstFields = {CombinedScorer.SCORING_FIELDS[0], CombinedScorer.SCORING_FIELDS[1]};
+		double[][][] scores = new MultiFieldPriorCalculator(testIR, trainIR, null, firstFields).computePriors();
+		t2 = System.nanoTime();
+		ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Time Taken Priors (title, desc): " + ttaken);
+		time_taken.put("cascade_priors", ttaken);
+
+		t1 = System.nanoTime();
+		FieldStatistics contentStats = FieldStatistics.compute(trainIR, CombinedScorer.SCORING_FIELDS[2], null);
+		SparseScorer contentScorer = new SparseScorer(trainIR, contentStats, null);
+		int[][] queryTerms = SparseScorer.queryTerms(testIR, contentStats);
+		OpenBitSet trainDocs = new OpenBitSet(nTrainDocs);
+		trainDocs.set(0, nTrainDocs);
+		double[] combined = new double[nTrainDocs];
+		Score[][] combined_score = new Score[nTestDocs][];
+		for (int i = 0; i < nTestDocs; ++i) {
+			for (int j = 0; j < nTrainDocs; ++j)
+				combined[j] = scores[0][j][i] * weights[0] + scores[1][j][i] * weights[1];
+			Score[] firstStage = SparseScorer.selectTopK(combined, trainDocs, cascadeCandidates);
+			int[] candidates = new int[firstStage.length];
+			OpenBitSet candidateSet = new OpenBitSet(nTrainDocs);
+			for (int c = 0; c < firstStage.length; ++c) {
+				candidates[c] = firstStage[c].docID;
+				candidateSet.fastSet(candidates[c]);
+			}
+			Arrays.sort(candidates);
+			contentScorer.scoreCandidates(queryTerms[i], weights[2], candidates, combined);
+			combined_score[i] = SparseScorer.selectTopK(combined, candidateSet, topN);
+		}
+		t2 = System.nanoTime();
+		ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Time Taken Cascade Content Scoring: " + ttaken);
+		time_taken.put("cascade_content", ttaken);
+
+		if (reportCascadeDifferences) {
+			int numDifferent = 0;
+			double recall = 0.0;
+			for (int i = 0; i < nTestDocs; ++i) {
+				for (int j = 0; j < nTrainDocs; ++j)
+					combined[j] = scores[0][j][i] * weights[0] + scores[1][j][i] * weights[1];
+				contentScorer.score(queryTerms[i], weights[2], combined);
+				Score[] full = SparseScorer.selectTopK(combined, trainDocs, topN);
+				double r = CandidateGenerator.recall(combined_score[i], full);
+				if (r < 1.0)
+					numDifferent++;
+				recall += r;
+			}
+			System.out.println("Cascade with " + cascadeCandidates + " candidates: top " + topN +
+					" different from full scoring for " + numDifferent + " of " + nTestDocs +
+					" test documents, average recall " + recall / nTestDocs);
+		}
+		scores = null;
+
+		predictFromNeighbors(fieldsToPredict, combined_score, topN, trainIR, testIR);
+
+		trainIR.close();
+		testIR.close();
+	}
+
+	/**
+	 * Predict every field from neighbors sorted by descending combined log score
+	 */
+	private static void predictFromNeighbors(Map<String, List<PredictionResult>> fieldsToPredict,
+			Score[][] combined_score, int topN, IndexReader trainIR, IndexReader testIR) throws Exception {
+
+		for (Score[] neighbors : combined_score) {
+			for (Score score : neighbors)
+				score.score = Math.pow(10.0, score.score);
+		}
+		normalizeScores(combined_score, topN);
+		long numKept = cutNeighbors(combined_score, topN);
+		System.out.println("Average neighbors used: " + ((double)numKept) / combined_score.length + " of " + topN);
+
+		predictAllFields(fieldsToPredict, combined_score, topN, trainIR, testIR);
+	}
+
+	/**
+	 * Predict the fields of every record of the nsdl.info feed from the train
+	 * index in one pass, in micro-batches of feedBatchSize records
+	 */
+	private static void classifyFeed(String[] fieldsToPredict) throws Exception {
+
+		IndexReader trainIR = openTrainReader(true);
+		int topN = 500;
+
+		long t1 = System.nanoTime();
+		FeedClassifier classifier = new FeedClassifier(trainIR, fieldsToPredict, topN, feedBatchSize, PriorCalculator.numThreads);
+		long t2 = System.nanoTime();
+		System.out.println("Time Taken Train Model: " + ((double)(t2-t1)) / 1E9);
+
+		BufferedReader feed = new BufferedReader(new FileReader(NSDLIndex.NSDL_FILE_NAME));
+		BufferedWriter writer = new BufferedWriter(new FileWriter(PREDICTION_OUTFILE_NAME + "_feed"));
+		t1 = System.nanoTime();
+		classifier.run(feed, writer);
+		t2 = System.nanoTime();
+		writer.close();
+		feed.close();
+		double ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Records: " + classifier.numRecords + " per second: " + classifier.numRecords / ttaken +
+				" average neighbors used: " + ((double)classifier.numNeighborsUsed.get()) / classifier.numRecords + " of " + topN);
+
+		for (int f = 0; f < fieldsToPredict.length; ++f) {
+			Evaluation evaluation = classifier.evaluations[f];
+			Evaluation trainEvaluation = classifier.trainEvaluations[f];
+			System.out.println("MAP (" + fieldsToPredict[f] + ") over " + evaluation.numResults +
+					" labelled records not in the train index: " + evaluation.map() + ", over " +
+					trainEvaluation.numResults + " train records: " + trainEvaluation.map());
+		}
+		trainIR.close();
+	}
+
+	/**
+	 * Pruned vocabulary of every scoring field at a level {minDocFreq,
+	 * maxDocFreqRatio, maxTerms}, read from VOCABULARY_FILE_NAME or computed and
+	 * stored there with the term statistics, under the number of documents and
+	 * the version of the train index
+	 * @param stats statistics of all terms of every field, filled in when needed
+	 * @return null when the level keeps every term
+	 */
+	private static String[][] vocabularies(IndexReader trainIR, FieldStatistics[] stats, double[] level) throws IOException {
+
+		int minDocFreq = (int) level[0];
+		double maxDocFreqRatio = level[1];
+		int maxTerms = (int) level[2];
+		if (minDocFreq <= 1 && maxDocFreqRatio >= 1.0 && maxTerms <= 0)
+			return null;
+
+		String[] fieldNames = CombinedScorer.SCORING_FIELDS;
+		String[][] vocabularies = new String[fieldNames.length][];
+		for (int f = 0; f < fieldNames.length; ++f) {
+			File file = new File(VOCABULARY_FILE_NAME + "_" + trainIR.maxDoc() + "_" + trainIR.getVersion() + "_" +
+					minDocFreq + "_" + maxDocFreqRatio + "_" + maxTerms + "_" + fieldNames[f]);
+			FieldStatistics pruned = null;
+			if (file.exists()) {
+				pruned = FieldStatistics.read(file);
+				if (pruned.numDocs != trainIR.maxDoc())
+					pruned = null;
+			}
+			if (pruned == null) {
+				if (stats[f] == null)
+					stats[f] = FieldStatistics.compute(trainIR, fieldNames[f], null);
+				pruned = stats[f].prune(minDocFreq, maxDocFreqRatio, maxTerms);
+				pruned.write(file);
+			}
+			vocabularies[f] = pruned.terms;
+			System.out.println("Vocabulary (" + fieldNames[f] + "): " + pruned.numTerms() + " terms");
+		}
+		return vocabularies;
+	}
+
+	/**
+	 * Compute the priors and predict at every level of pruningLevels and report
+	 * MAP, P@K and the time taken by the priors
+	 */
+	private static void runPruningSweep(String[] fieldsToPredict) throws Exception {
+
+		IndexReader trainIR = openTrainReader(true);
+		IndexReader testIR  = openTestReader(true);
+		int topN = 500;
+		FieldStatistics[] stats = new FieldStatistics[CombinedScorer.SCORING_FIELDS.length];
+
+		BufferedWriter writer = new BufferedWriter(new FileWriter(OUTPUT_FILE_NAME + "_" + numTesting + "_" + numTraining + "_pruning"));
+		for (double[] level : pruningLevels) {
+			long t1 = System.nanoTime();
+			String[][] vocabularies = vocabularies(trainIR, stats, level);
+			long t2 = System.nanoTime();
+			double[][][] scores = new MultiFieldPriorCalculator(testIR, trainIR, null, CombinedScorer.SCORING_FIELDS,
+					vocabularies).computePriors();
+			long t3 = System.nanoTime();
+			Score[][] neighbors = NeighborStore.select(scores, CombinedScorer.FIELD_WEIGHTS, topN).rank(CombinedScorer.FIELD_WEIGHTS, topN);
+			scores = null;
+			Map<String, List<PredictionResult>> predMap = new LinkedHashMap<String, List<PredictionResult>>();
+			for (String fieldName : fieldsToPredict)
+				predMap.put(fieldName, new ArrayList<PredictionResult>());
+			predictFromNeighbors(predMap, neighbors, topN, trainIR, testIR);
+
+			writer.append("minDocFreq: " + (int) level[0] + " maxDocFreqRatio: " + level[1] + " maxTerms: " + (int) level[2]);
+			writer.append(" terms:");
+			for (int f = 0; f < CombinedScorer.SCORING_FIELDS.length; ++f)
+				writer.append(" " + ((vocabularies != null) ? vocabularies[f].length : -1));
+			writer.append(" vocabulary_time: " + ((double)(t2-t1)) / 1E9 + " prior_time: " + ((double)(t3-t2)) / 1E9 + "\n");
+			for (String fieldName : fieldsToPredict) {
+				Evaluation evaluation = EvaluationEngine.evaluate(predMap.get(fieldName), PriorCalculator.numThreads);
+				writer.append("\t" + fieldName + " MAP: " + evaluation.map() + " P@K:");
+				for (double precision : evaluation.precisionAtK())
+					writer.append(" " + precision);
+				writer.append("\n");
+			}
+			writer.flush();
+		}
 		writer.close();
+
+		trainIR.close();
+		testIR.close();
 	}
 
-	private static double[][][] readScores() throws Exception {
+	/**
+	 * Score every field once, keep the top sweepListSize train documents per
+	 * field and evaluate all field weights and topN settings over them
+	 */
+	private static void runParameterSweep(String[] fieldsToPredict) throws Exception {
 
-		double[][][] scores;
-		BufferedReader reader = new BufferedReader(new FileReader(new File(SCORE_FILE_NAME + "_" + numTesting + "_" + numTraining)));
-		String line = reader.readLine();
+		IndexReader trainIR = openTrainReader(true);
+		IndexReader testIR  = openTestReader(true);
 
-		String[] sizes = line.split(" ");
-		numTraining = Integer.parseInt(sizes[0]);
-		numTesting = Integer.parseInt(sizes[1]);
-		scores = new double[3][numTraining][numTesting];
-		
-		for (int i = 0; i < scores.length; ++i) {
-			for (int j = 0; j < numTraining; ++j) {
-				line = reader.readLine();
-				String[] values = line.split(" ");
-				int index = 0;
-				for (int k = 0; k < values.length; ++k) {
-					if (values[k].trim().length() == 0)
-						continue;
-					scores[i][j][index] = Double.parseDouble(values[k].trim());
-//					System.out.print(" " + scores[i][j][index]);
-					++index;
-				}
-//				System.out.println();
-//				System.exit(1);
+		long t1, t2;
+
+		t1 = System.nanoTime();
+		CombinedScorer scorer = CombinedScorer.create(trainIR, testIR, null);
+		CandidateCache cache = new CandidateCache(scorer, sweepListSize);
+		ParameterSweep sweep = new ParameterSweep(cache, trainIR, testIR, fieldsToPredict);
+		t2 = System.nanoTime();
+		System.out.println("Time Taken Candidate Cache: " + ((double)(t2-t1)) / 1E9);
+
+		List<ParameterSweep.Setting> settings = ParameterSweep.grid(CombinedScorer.SCORING_FIELDS.length, sweepWeightSteps, sweepTopNs);
+		t1 = System.nanoTime();
+		sweep.run(settings, Runtime.getRuntime().availableProcessors());
+		t2 = System.nanoTime();
+		System.out.println("Time Taken " + settings.size() + " Settings: " + ((double)(t2-t1)) / 1E9);
+
+		BufferedWriter writer = new BufferedWriter(new FileWriter(OUTPUT_FILE_NAME + "_" + numTesting + "_" + numTraining + "_sweep"));
+		sweep.write(writer, settings);
+		writer.flush();
+		writer.close();
+
+		for (int f = 0; f < fieldsToPredict.length; ++f) {
+			ParameterSweep.Setting best = settings.get(0);
+			for (ParameterSweep.Setting setting : settings) {
+				if (setting.evaluations[f].map() > best.evaluations[f].map())
+					best = setting;
 			}
+			System.out.println("Best MAP for " + fieldsToPredict[f] + ": " + best.evaluations[f].map() +
+					" weights: " + Arrays.toString(best.weights) + " topN: " + best.topN);
 		}
-		reader.close();
 
-		return scores;
+		trainIR.close();
+		testIR.close();
+	}
+
+	private static void writeNeighbors(NeighborStore store) throws IOException {
+		long t1 = System.nanoTime();
+		File file = new File(NEIGHBOR_FILE_NAME + "_" + numTesting + "_" + numTraining);
+		store.write(file);
+		long t2 = System.nanoTime();
+		System.out.println("Time Taken Writing Neighbors: " + ((double)(t2-t1)) / 1E9 + " size: " + file.length());
+	}
+
+	/**
+	 * Read the neighbor store, add the test documents beyond those it holds
+	 * and write it under the new number of test documents. The train
+	 * statistics of the fields are kept next to the store, under the number of
+	 * documents and the version of the train index they were computed from.
+	 * The train index must be the one the store was selected over; after
+	 * appending train documents the neighbors have to be selected again.
+	 */
+	private static NeighborStore appendTestDocuments(IndexReader trainIR, IndexReader testIR) throws IOException {
+
+		NeighborStore store = readNeighbors();
+		if (trainIR.maxDoc() != store.numTrainDocs)
+			throw new IllegalStateException("Neighbor store was selected over " + store.numTrainDocs +
+					" train documents, the train index has " + trainIR.maxDoc());
+		int nOldTestDocs = store.numTestDocs();
+		int[] newTestDocs = new int[Math.max(0, testIR.maxDoc() - nOldTestDocs)];
+		for (int i = 0; i < newTestDocs.length; ++i)
+			newTestDocs[i] = nOldTestDocs + i;
+
+		long t1 = System.nanoTime();
+		String[] fieldNames = CombinedScorer.SCORING_FIELDS;
+		SparseScorer[] scorers = new SparseScorer[fieldNames.length];
+		int[][][] queryTerms = new int[fieldNames.length][][];
+		for (int f = 0; f < fieldNames.length; ++f) {
+			File statsFile = new File(NEIGHBOR_FILE_NAME + "_" + trainIR.maxDoc() + "_" + trainIR.getVersion() +
+					"_stats_" + fieldNames[f]);
+			FieldStatistics stats = null;
+			if (statsFile.exists()) {
+				stats = FieldStatistics.read(statsFile);
+				if (stats.numDocs != trainIR.maxDoc())
+					stats = null;
+			}
+			if (stats == null) {
+				stats = FieldStatistics.compute(trainIR, fieldNames[f], null);
+				stats.write(statsFile);
+			}
+			scorers[f] = new SparseScorer(trainIR, stats, null);
+			queryTerms[f] = SparseScorer.queryTerms(testIR, stats, newTestDocs);
+		}
+		long t2 = System.nanoTime();
+		System.out.println("Time Taken Train Statistics: " + ((double)(t2-t1)) / 1E9);
+
+		t1 = System.nanoTime();
+		store.append(scorers, CombinedScorer.FIELD_WEIGHTS, queryTerms);
+		t2 = System.nanoTime();
+		double ttaken = ((double)(t2-t1)) / 1E9;
+		System.out.println("Time Taken Appending " + newTestDocs.length + " Test Documents: " + ttaken);
+		time_taken.put("append_test_docs", ttaken);
+
+		numTesting = store.numTestDocs();
+		writeNeighbors(store);
+		return store;
+	}
+
+	private static NeighborStore readNeighbors() throws IOException {
+		long t1 = System.nanoTime();
+		NeighborStore store = NeighborStore.read(new File(NEIGHBOR_FILE_NAME + "_" + numTesting + "_" + numTraining));
+		numTraining = store.numTrainDocs;
+		numTesting = store.numTestDocs();
+		long t2 = System.nanoTime();
+		System.out.println("Time Taken Reading Neighbors: " + ((double)(t2-t1)) / 1E9);
+		return store;
 	}
 
 	private static double findAverageFieldLength(IndexReader trainIR, String field) throws Exception {
 
 		// find average lengths
-		int[] docLengths = new int[numTraining];
+		int[] docLengths = new int[trainIR.maxDoc()];
 		
 		TermEnum terms = trainIR.terms();
 		while (terms.next()) {
@@ -584,19 +1168,59 @@ public class MultiLabelClassificationNSDL {
 	}
 	
 
-	private static void generateMultiLabelDataset() throws Exception {
+	/**
+	 * Select the train and test documents of the global index and save them
+	 * to SPLIT_FILE_NAME without copying any document
+	 */
+	private static void generateSplit() throws Exception {
 
-		File nsdl_global_file = new File(NSDLIndex.NSDL_GLOBAL_INDEX_DIR_NAME);
-		IndexReader ir = IndexReader.open(FSDirectory.open(nsdl_global_file), true);
+		IndexReader ir = IndexReader.open(FSDirectory.open(new File(NSDLIndex.NSDL_GLOBAL_INDEX_DIR_NAME)), true);
+		split = DocSplit.create(ir, numTesting, numTraining, splitSeed);
+		ir.close();
+		split.write(new File(SPLIT_FILE_NAME));
+		System.out.println("Number of documents in split: " + split.testDocs.cardinality() + " testing, " +
+				split.trainDocs.cardinality() + " training");
+	}
 
-		IndexWriter testIW = NSDLIndex.createIndexWriter(TEST_INDEX_NAME);
-		IndexWriter trainIW = NSDLIndex.createIndexWriter(TRAIN_INDEX_NAME);
-		testIW.deleteAll();
-		trainIW.deleteAll();
+	private static DocSplit loadSplit() throws IOException {
+		if (split == null)
+			split = DocSplit.read(new File(SPLIT_FILE_NAME));
+		testDocIDs.clear();
+		for (int d = split.testDocs.nextSetBit(0); d >= 0; d = split.testDocs.nextSetBit(d + 1))
+			testDocIDs.add(d);
+		trainDocIDs.clear();
+		for (int d = split.trainDocs.nextSetBit(0); d >= 0; d = split.trainDocs.nextSetBit(d + 1))
+			trainDocIDs.add(d);
+		return split;
+	}
 
-		// first search for all documents having at least one value for each of
-		// content, description, title, subject, audience fields
-		IndexSearcher searcher = new IndexSearcher(ir);
+	/**
+	 * @param inMemory load a physical index into a RAMDirectory; a split view
+	 * always reads the global index from disk
+	 */
+	private static IndexReader openTrainReader(boolean inMemory) throws IOException {
+		if (useVirtualSplit)
+			return loadSplit().trainReader(IndexReader.open(FSDirectory.open(new File(NSDLIndex.NSDL_GLOBAL_INDEX_DIR_NAME)), true));
+		return openReader(TRAIN_INDEX_NAME, inMemory);
+	}
+
+	private static IndexReader openTestReader(boolean inMemory) throws IOException {
+		if (useVirtualSplit)
+			return loadSplit().testReader(IndexReader.open(FSDirectory.open(new File(NSDLIndex.NSDL_GLOBAL_INDEX_DIR_NAME)), true));
+		return openReader(TEST_INDEX_NAME, inMemory);
+	}
+
+	private static IndexReader openReader(String indexName, boolean inMemory) throws IOException {
+		if (inMemory)
+			return IndexReader.open(new RAMDirectory(FSDirectory.open(new File(indexName))), true);
+		return IndexReader.open(FSDirectory.open(new File(indexName)), true);
+	}
+
+	/**
+	 * Documents with at least one value of subject, educationLevel and audience
+	 * and a non-empty title, content and description
+	 */
+	static BooleanQuery testableDocumentsQuery() {
 
 		NumericRangeQuery<Integer> nq1 = NumericRangeQuery.newIntRange("num_subject", 1, 100000, true, true);
 		NumericRangeQuery<Integer> nq2 = NumericRangeQuery.newIntRange("num_educationLevel", 1, 10, true, true);
@@ -612,31 +1236,34 @@ public class MultiLabelClassificationNSDL {
 		nq.add(nq4, BooleanClause.Occur.MUST);
 		nq.add(nq5, BooleanClause.Occur.MUST);
 		nq.add(nq6, BooleanClause.Occur.MUST);
+		return nq;
+	}
 
-		TopDocs t = searcher.search(nq, ir.numDocs());
-		ScoreDoc[] hits = t.scoreDocs;
-		Collections.shuffle(Arrays.asList(hits));
-		System.out.println("Number of documents eligible for testing set: " + hits.length);
+	private static void generateMultiLabelDataset() throws Exception {
 
-		// select the document ids from the global index to go into the testing index
-		for (int i = 0; i < numTesting; ++i) {
-			int docID = (int) (Math.random() * hits.length);
-			testDocIDs.add(hits[docID].doc);
-		}
+		File nsdl_global_file = new File(NSDLIndex.NSDL_GLOBAL_INDEX_DIR_NAME);
+		IndexReader ir = IndexReader.open(FSDirectory.open(nsdl_global_file), true);
 
-		int totalDocs = ir.numDocs();
-		for (int docID = 0; docID < totalDocs; ++docID) {
-			if (trainIW.numDocs() >= numTraining && testIW.numDocs() >= numTesting)
-				break;
-			Document doc = ir.document(docID);
-			if (testDocIDs.contains(docID)) {
-				testIW.addDocument(doc);
+		NSDLIndex.StorageProfile profile = NSDLIndex.StorageProfile.forName(splitIndexProfile);
+		IndexWriter testIW = NSDLIndex.createIndexWriter(TEST_INDEX_NAME, profile);
+		IndexWriter trainIW = NSDLIndex.createIndexWriter(TRAIN_INDEX_NAME, profile);
+		testIW.deleteAll();
+		trainIW.deleteAll();
+
+		// test documents have at least one value for each of content, description,
+		// title, subject, audience fields, sampled by audience
+		DocSplit docSplit = DocSplit.create(ir, numTesting, numTraining, splitSeed);
+
+		// stored fields are only read for the selected documents
+		int maxDoc = ir.maxDoc();
+		for (int docID = 0; docID < maxDoc; ++docID) {
+			if (docSplit.testDocs.fastGet(docID)) {
+				testDocIDs.add(docID);
+				testIW.addDocument(ir.document(docID));
 			}
-			else {
-				if (trainIW.numDocs() < numTraining) {
-					trainDocIDs.add(docID);
-					trainIW.addDocument(doc);
-				}
+			else if (docSplit.trainDocs.fastGet(docID)) {
+				trainDocIDs.add(docID);
+				trainIW.addDocument(ir.document(docID));
 			}
 		}
 		ir.close();
@@ -653,8 +1280,9 @@ public class MultiLabelClassificationNSDL {
 		File nsdl_global_file = new File(NSDLIndex.NSDL_GLOBAL_INDEX_DIR_NAME);
 		IndexReader ir = IndexReader.open(FSDirectory.open(nsdl_global_file), true);
 
-		IndexWriter testIW = NSDLIndex.createIndexWriter(TEST_INDEX_NAME);
-		IndexWriter trainIW = NSDLIndex.createIndexWriter(TRAIN_INDEX_NAME);
+		NSDLIndex.StorageProfile profile = NSDLIndex.StorageProfile.forName(splitIndexProfile);
+		IndexWriter testIW = NSDLIndex.createIndexWriter(TEST_INDEX_NAME, profile);
+		IndexWriter trainIW = NSDLIndex.createIndexWriter(TRAIN_INDEX_NAME, profile);
 		testIW.deleteAll();
 		trainIW.deleteAll();
 
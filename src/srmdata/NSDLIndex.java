@@ -22,7 +22,10 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Index;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Fieldable;
 import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
@@ -34,6 +37,7 @@ import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.OpenBitSet;
 import org.apache.lucene.util.Version;
 
 public class NSDLIndex {
@@ -43,29 +47,151 @@ public class NSDLIndex {
 	public static String NSDL_GLOBAL_INDEX_DIR_NAME = "../../global_index/";
 	public static Version VERSION = Version.LUCENE_35;
 
+	private static long SMALL_INDEX_SEED = 0;
+
 	private static String TEST_INDEX_PREFIX = "../../test_index_";
 	private static String TRAIN_INDEX_PREFIX = "../../train_index_";
 	
+	// storage profile of the global index, see StorageProfile
+	public static String GLOBAL_INDEX_PROFILE = "full";
+
+	// fields predicted from the neighbors, indexed as lower cased keywords
+	static final String[] LABEL_FIELDS = {"audience", "subject", "sub", "educationLevel"};
+
 	public static Map<String, String> testTrainFileNames;
 
 	static {
 		testTrainFileNames = new HashMap<String, String>();
 	}
 
+	/**
+	 * Analyzer of all indices: label fields as lower cased keywords, text fields by MyAnalyzer
+	 */
+	public static Analyzer createAnalyzer() {
+		Map<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+		for (String fieldName : LABEL_FIELDS)
+			fieldAnalyzers.put(fieldName, new LowerCaseAnalyzer());
+		return new PerFieldAnalyzerWrapper(new MyAnalyzer(), fieldAnalyzers);
+	}
+
+	/**
+	 * What an index keeps of the fields of a record.
+	 *
+	 * "full" stores every field and indexes it with positions and term
+	 * vectors. "scoring-only" keeps what the classification reads:
+	 * - postings with frequencies and norms of the text fields, without
+	 *   positions or term vectors, as the priors and CandidateGenerator only
+	 *   read term frequencies,
+	 * - the label fields stored and indexed as keywords without norms or
+	 *   frequencies,
+	 * - URI stored,
+	 * - the numeric fields indexed for range queries but not stored.
+	 * Documents read back from a scoring-only index have no text, so it cannot
+	 * be the source of indices copied by document (createSmallIndex,
+	 * generateMultiLabelDataset); use it with the DocSplit readers instead.
+	 */
+	public static class StorageProfile {
+
+		public static final StorageProfile FULL = new StorageProfile("full", true, true, true, IndexOptions.DOCS_AND_FREQS_AND_POSITIONS, false);
+		public static final StorageProfile SCORING_ONLY = new StorageProfile("scoring-only", false, false, false, IndexOptions.DOCS_AND_FREQS, true);
+
+		final String name;
+		final boolean storeText;
+		final boolean storeNumeric;
+		final boolean termVectors;
+		final IndexOptions textIndexOptions;
+		final boolean keywordLabels;
+
+		StorageProfile(String name, boolean storeText, boolean storeNumeric, boolean termVectors,
+				IndexOptions textIndexOptions, boolean keywordLabels) {
+			this.name = name;
+			this.storeText = storeText;
+			this.storeNumeric = storeNumeric;
+			this.termVectors = termVectors;
+			this.textIndexOptions = textIndexOptions;
+			this.keywordLabels = keywordLabels;
+		}
+
+		public static StorageProfile forName(String name) {
+			if (name.equals(FULL.name))
+				return FULL;
+			if (name.equals(SCORING_ONLY.name))
+				return SCORING_ONLY;
+			throw new IllegalArgumentException("Unknown storage profile: " + name);
+		}
+
+		Field field(String fieldName, String value) {
+			Field.TermVector termVector = termVectors ? Field.TermVector.YES : Field.TermVector.NO;
+			if (Arrays.asList(LABEL_FIELDS).contains(fieldName)) {
+				if (!keywordLabels)
+					return new Field(fieldName, value, Store.YES, Index.ANALYZED, termVector);
+				Field field = new Field(fieldName, value, Store.YES, Index.ANALYZED_NO_NORMS, Field.TermVector.NO);
+				field.setIndexOptions(IndexOptions.DOCS_ONLY);
+				return field;
+			}
+			Store store = (storeText || fieldName.equals("URI")) ? Store.YES : Store.NO;
+			Field field = new Field(fieldName, value, store, Index.ANALYZED, termVector);
+			field.setIndexOptions(textIndexOptions);
+			return field;
+		}
+
+		NumericField numericField(String fieldName, int precisionStep, Number value) {
+			NumericField field = new NumericField(fieldName, precisionStep, storeNumeric ? Store.YES : Store.NO, true);
+			if (value instanceof Integer)
+				return field.setIntValue(value.intValue());
+			if (value instanceof Long)
+				return field.setLongValue(value.longValue());
+			if (value instanceof Float)
+				return field.setFloatValue(value.floatValue());
+			return field.setDoubleValue(value.doubleValue());
+		}
+
+		/**
+		 * The fields of a document as kept by this profile
+		 */
+		Document apply(Document doc) {
+			Document applied = new Document();
+			applied.setBoost(doc.getBoost());
+			for (Fieldable field : doc.getFields()) {
+				if (field instanceof NumericField) {
+					NumericField numeric = (NumericField) field;
+					applied.add(numericField(numeric.name(), numeric.getPrecisionStep(), numeric.getNumericValue()));
+				}
+				else if (field.stringValue() != null)
+					applied.add(field(field.name(), field.stringValue()));
+				else
+					applied.add(field);
+			}
+			return applied;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
 	public static IndexWriter createIndexWriter(String name) throws Exception {
+		return createIndexWriter(name, StorageProfile.FULL);
+	}
+
+	/**
+	 * A writer that adds every document, also those read from another index,
+	 * with the fields kept by the profile
+	 */
+	public static IndexWriter createIndexWriter(String name, final StorageProfile profile) throws Exception {
 		File nsdl_index_dir = new File(name);
-		Map<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
-		fieldAnalyzers.put("audience", new LowerCaseAnalyzer());
-		fieldAnalyzers.put("subject", new LowerCaseAnalyzer());
-		fieldAnalyzers.put("sub", new LowerCaseAnalyzer());
-		fieldAnalyzers.put("educationLevel", new LowerCaseAnalyzer());
-		PerFieldAnalyzerWrapper analyzer = new PerFieldAnalyzerWrapper(new MyAnalyzer(), fieldAnalyzers);
 
 		IndexWriterConfig iwConfig;
-		iwConfig = new IndexWriterConfig(VERSION, analyzer);
+		iwConfig = new IndexWriterConfig(VERSION, createAnalyzer());
 
 		IndexWriter iw;
-		iw = new IndexWriter(FSDirectory.open(nsdl_index_dir), iwConfig);
+		iw = new IndexWriter(FSDirectory.open(nsdl_index_dir), iwConfig) {
+			@Override
+			public void addDocument(Document doc, Analyzer analyzer) throws CorruptIndexException, IOException {
+				super.addDocument(profile.apply(doc), analyzer);
+			}
+		};
 		iw.deleteAll();
 		return iw;
 	}
@@ -77,22 +203,18 @@ public class NSDLIndex {
 		
 		IndexWriter iw = createIndexWriter(NSDL_INDEX_DIR_NAME);
 
-		int count = 0;
+		// keep 30% of the learner and educator documents and all others
+		Map<String, Double> rates = new HashMap<String, Double>();
+		rates.put("learner", 0.3);
+		rates.put("educator", 0.3);
+		StratifiedSampler sampler = new StratifiedSampler(ir, "audience", null);
+		StratifiedSampler.Sample sample = sampler.withRates(rates, 1.0, SMALL_INDEX_SEED);
+		OpenBitSet selected = sampler.select(sample);
+		System.out.println("Small index by audience: " + sampler.describe(sample));
+
 		int totalDocs = ir.maxDoc();
-		for (int i = 0; i < totalDocs; i++) {
-			Document doc = ir.document(i);
-			String audience = doc.get("audience");
-			if (audience.equalsIgnoreCase("learner") || audience.equalsIgnoreCase("educator")) {
-				if (Math.random() < 0.3) {
-					iw.addDocument(doc);
-					count++;
-				}
-			}
-			else {
-				iw.addDocument(doc);
-				count++;
-			}
-		}
+		for (int i = selected.nextSetBit(0); i >= 0 && i < totalDocs; i = selected.nextSetBit(i + 1))
+			iw.addDocument(ir.document(i));
 		
 		ir.close();
 		iw.commit();
@@ -101,7 +223,8 @@ public class NSDLIndex {
 	
 	public static void createGlobalIndex() throws Exception {
 
-		IndexWriter iw = createIndexWriter(NSDL_GLOBAL_INDEX_DIR_NAME);
+		long t1 = System.currentTimeMillis();
+		IndexWriter iw = createIndexWriter(NSDL_GLOBAL_INDEX_DIR_NAME, StorageProfile.forName(GLOBAL_INDEX_PROFILE));
 		BufferedReader reader = new BufferedReader(new FileReader(NSDL_FILE_NAME));
 
 		Document doc = null;
@@ -186,6 +309,42 @@ public class NSDLIndex {
 		iw.commit();
 		iw.close();
 		reader.close();
+		long t2 = System.currentTimeMillis();
+		System.out.println("Global index with storage profile " + GLOBAL_INDEX_PROFILE + ": " + totalDocs +
+				" documents, " + directorySize(new File(NSDL_GLOBAL_INDEX_DIR_NAME)) + " bytes, time: " + (t2-t1) / 1000.0);
+	}
+
+	static long directorySize(File dir) {
+		long size = 0;
+		for (File file : dir.listFiles())
+			size += file.length();
+		return size;
+	}
+
+	/**
+	 * Read the next record of a feed in the format of NSDL_FILE_NAME: lines of
+	 * "field: value" separated from the next record by an empty line
+	 * @return the fields of the record as stored and analyzed by createGlobalIndex, null at the end of the feed
+	 */
+	public static Document readRecord(BufferedReader reader) throws IOException {
+		Document doc = null;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.equals("")) {
+				if (doc != null)
+					return doc;
+				continue;
+			}
+			int index = line.indexOf(':');
+			if (index == -1)
+				continue;
+			if (doc == null)
+				doc = new Document();
+			String fieldName = line.substring(0,index);
+			String fieldValue = (index+2 <= line.length()) ? line.substring(index+2) : "";
+			doc.add(new Field(fieldName, fieldValue, Store.YES, Index.ANALYZED, Field.TermVector.YES));
+		}
+		return doc;
 	}
 
 	public static void generateTestTrainSets() throws Exception {
@@ -0,0 +1,223 @@
+package srmdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.lucene.util.OpenBitSet;
+
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * The listSize train documents with the highest combined log score of every
+ * test document, with the log score of each field, in place of the full
+ * nTrain x nTest score matrices. Neighbors of a test document are stored in
+ * increasing train id as variable length deltas followed by the field scores,
+ * and the file is gzipped, so its size grows with nTest x listSize.
+ *
+ * Ranking with the weights the lists were selected with gives the same top
+ * neighbors as the full matrices for any topN up to listSize. Test documents
+ * are independent of each other, so new ones are appended without touching
+ * the stored lists.
+ */
+class NeighborStore {
+
+	static final int MAGIC = 0x4e425231;
+
+	int numFields;
+	int numTrainDocs;
+	int listSize;
+	// train ids of the neighbors of every test document, increasing
+	int[][] trainDocs;
+	// scores[field][test doc][i] of trainDocs[test doc][i]
+	double[][][] scores;
+
+	int numTestDocs() {
+		return trainDocs.length;
+	}
+
+	/**
+	 * Select the neighbors of every test document from scores[field][train doc][test doc]
+	 */
+	static NeighborStore select(double[][][] scores, double[] weights, int listSize) {
+
+		NeighborStore store = new NeighborStore();
+		store.numFields = scores.length;
+		store.numTrainDocs = scores[0].length;
+		store.listSize = listSize;
+		int nTestDocs = (store.numTrainDocs == 0) ? 0 : scores[0][0].length;
+		store.trainDocs = new int[nTestDocs][];
+		store.scores = new double[store.numFields][nTestDocs][];
+
+		OpenBitSet all = new OpenBitSet(store.numTrainDocs);
+		all.set(0, store.numTrainDocs);
+		double[] combined = new double[store.numTrainDocs];
+		for (int i = 0; i < nTestDocs; ++i) {
+			for (int j = 0; j < store.numTrainDocs; ++j) {
+				combined[j] = 0.0;
+				for (int f = 0; f < store.numFields; ++f)
+					combined[j] += scores[f][j][i] * weights[f];
+			}
+			Score[] top = SparseScorer.selectTopK(combined, all, listSize);
+			int[] docs = new int[top.length];
+			for (int k = 0; k < top.length; ++k)
+				docs[k] = top[k].docID;
+			Arrays.sort(docs);
+			store.trainDocs[i] = docs;
+			for (int f = 0; f < store.numFields; ++f) {
+				store.scores[f][i] = new double[docs.length];
+				for (int k = 0; k < docs.length; ++k)
+					store.scores[f][i][k] = scores[f][docs[k]][i];
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Append test documents scored against all train documents by one
+	 * SparseScorer per field, leaving the stored ones as they are. The cost of a
+	 * test document is one pass over the train documents per field to add the
+	 * shared part of the score, and the train postings of its own terms.
+	 * @param scorers scorers of the fields over the train documents of the store
+	 * @param weights weights the lists are selected with
+	 * @param queryTerms term ids of every field and appended test document, as by SparseScorer.queryTerms
+	 * @throws IOException
+	 */
+	void append(SparseScorer[] scorers, double[] weights, int[][][] queryTerms) throws IOException {
+
+		if (scorers.length != numFields)
+			throw new IllegalArgumentException("Expected " + numFields + " fields, got " + scorers.length);
+		for (SparseScorer scorer : scorers) {
+			if (scorer.stats.numDocs != numTrainDocs)
+				throw new IllegalArgumentException("Expected scorers over " + numTrainDocs + " train documents, got " + scorer.stats.numDocs);
+		}
+		int nOldTestDocs = numTestDocs();
+		int nNewTestDocs = (queryTerms.length == 0) ? 0 : queryTerms[0].length;
+		trainDocs = Arrays.copyOf(trainDocs, nOldTestDocs + nNewTestDocs);
+		for (int f = 0; f < numFields; ++f)
+			scores[f] = Arrays.copyOf(scores[f], nOldTestDocs + nNewTestDocs);
+
+		OpenBitSet all = scorers[0].trainDocs;
+		double[][] fieldScores = new double[numFields][numTrainDocs];
+		double[] combined = new double[numTrainDocs];
+		for (int i = 0; i < nNewTestDocs; ++i) {
+			Arrays.fill(combined, 0.0);
+			for (int f = 0; f < numFields; ++f) {
+				Arrays.fill(fieldScores[f], 0.0);
+				scorers[f].score(queryTerms[f][i], 1.0, fieldScores[f]);
+				ScoreKernels.addScaled(combined, fieldScores[f], weights[f]);
+			}
+			Score[] top = SparseScorer.selectTopK(combined, all, listSize);
+			int[] docs = new int[top.length];
+			for (int k = 0; k < top.length; ++k)
+				docs[k] = top[k].docID;
+			Arrays.sort(docs);
+			trainDocs[nOldTestDocs + i] = docs;
+			for (int f = 0; f < numFields; ++f) {
+				double[] docScores = new double[docs.length];
+				for (int k = 0; k < docs.length; ++k)
+					docScores[k] = fieldScores[f][docs[k]];
+				scores[f][nOldTestDocs + i] = docScores;
+			}
+		}
+	}
+
+	/**
+	 * @return the topN neighbors of every test document by combined log score, sorted by descending score
+	 */
+	Score[][] rank(double[] weights, int topN) {
+
+		Score[][] neighbors = new Score[numTestDocs()][];
+		double[] combined = new double[numTrainDocs];
+		OpenBitSet docs = new OpenBitSet(numTrainDocs);
+		for (int i = 0; i < numTestDocs(); ++i) {
+			docs.clear(0, numTrainDocs);
+			for (int k = 0; k < trainDocs[i].length; ++k) {
+				int d = trainDocs[i][k];
+				combined[d] = 0.0;
+				for (int f = 0; f < numFields; ++f)
+					combined[d] += scores[f][i][k] * weights[f];
+				docs.fastSet(d);
+			}
+			neighbors[i] = SparseScorer.selectTopK(combined, docs, topN);
+		}
+		return neighbors;
+	}
+
+	void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+		out.writeInt(MAGIC);
+		out.writeInt(numFields);
+		out.writeInt(numTrainDocs);
+		out.writeInt(numTestDocs());
+		out.writeInt(listSize);
+		for (int i = 0; i < numTestDocs(); ++i) {
+			writeVInt(out, trainDocs[i].length);
+			int last = 0;
+			for (int d : trainDocs[i]) {
+				writeVInt(out, d - last);
+				last = d;
+			}
+			for (int f = 0; f < numFields; ++f) {
+				for (double score : scores[f][i])
+					out.writeDouble(score);
+			}
+		}
+		out.close();
+	}
+
+	static NeighborStore read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		if (in.readInt() != MAGIC) {
+			in.close();
+			throw new IOException("Not a neighbor store: " + file);
+		}
+		NeighborStore store = new NeighborStore();
+		store.numFields = in.readInt();
+		store.numTrainDocs = in.readInt();
+		int nTestDocs = in.readInt();
+		store.listSize = in.readInt();
+		store.trainDocs = new int[nTestDocs][];
+		store.scores = new double[store.numFields][nTestDocs][];
+		for (int i = 0; i < nTestDocs; ++i) {
+			int[] docs = new int[readVInt(in)];
+			int last = 0;
+			for (int k = 0; k < docs.length; ++k)
+				docs[k] = last = last + readVInt(in);
+			store.trainDocs[i] = docs;
+			for (int f = 0; f < store.numFields; ++f) {
+				store.scores[f][i] = new double[docs.length];
+				for (int k = 0; k < docs.length; ++k)
+					store.scores[f][i][k] = in.readDouble();
+			}
+		}
+		in.close();
+		return store;
+	}
+
+	private static void writeVInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package srmdata;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+
+import srmdata.MultiLabelClassificationNSDL.PredictionResult;
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Evaluates field weights and topN settings of predictFields over a
+ * CandidateCache. The labels of the cached candidates and of the test
+ * documents are loaded once, so a setting costs a weighted sum, a top N
+ * selection and the label aggregation per test document.
+ */
+class ParameterSweep {
+
+	static class Setting {
+		double[] weights;
+		int topN;
+		// per predicted field
+		Evaluation[] evaluations;
+
+		Setting(double[] weights, int topN) {
+			this.weights = weights;
+			this.topN = topN;
+		}
+	}
+
+	CandidateCache cache;
+	String[] fieldsToPredict;
+	// train doc id -> values of every predicted field
+	Map<Integer, String[][]> candidateLabels;
+	// [field][test] values of the test documents
+	String[][][] actualValues;
+	String[] testURIs;
+
+	ParameterSweep(CandidateCache cache, IndexReader trainIR, IndexReader testIR, String[] fieldsToPredict) throws IOException {
+
+		this.cache = cache;
+		this.fieldsToPredict = fieldsToPredict;
+		MapFieldSelector labelSelector = new MapFieldSelector(fieldsToPredict);
+
+		candidateLabels = new HashMap<Integer, String[][]>();
+		for (int[] docs : cache.docIDs) {
+			for (int d : docs) {
+				if (candidateLabels.containsKey(d))
+					continue;
+				Document doc = trainIR.document(d, labelSelector);
+				String[][] labels = new String[fieldsToPredict.length][];
+				for (int f = 0; f < fieldsToPredict.length; ++f)
+					labels[f] = doc.getValues(fieldsToPredict[f]);
+				candidateLabels.put(d, labels);
+			}
+		}
+
+		int nTestDocs = cache.numTestDocs();
+		actualValues = new String[fieldsToPredict.length][nTestDocs][];
+		testURIs = new String[nTestDocs];
+		for (int q = 0; q < nTestDocs; ++q) {
+			Document doc = testIR.document(q);
+			testURIs[q] = doc.get("URI");
+			for (int f = 0; f < fieldsToPredict.length; ++f)
+				actualValues[f][q] = doc.getValues(fieldsToPredict[f]);
+		}
+	}
+
+	/**
+	 * Every weighting of the cached fields in steps of 1/numSteps that sums to one,
+	 * combined with every topN
+	 */
+	static List<Setting> grid(int numFields, int numSteps, int[] topNs) {
+		List<double[]> weightings = new ArrayList<double[]>();
+		addWeightings(new int[numFields], 0, numSteps, weightings);
+		List<Setting> settings = new ArrayList<Setting>();
+		for (double[] weights : weightings) {
+			for (int topN : topNs)
+				settings.add(new Setting(weights, topN));
+		}
+		return settings;
+	}
+
+	private static void addWeightings(int[] steps, int f, int remaining, List<double[]> weightings) {
+		if (f == steps.length - 1) {
+			steps[f] = remaining;
+			double[] weights = new double[steps.length];
+			int total = 0;
+			for (int step : steps)
+				total += step;
+			for (int i = 0; i < steps.length; ++i)
+				weights[i] = ((double)steps[i]) / total;
+			weightings.add(weights);
+			return;
+		}
+		for (int step = 0; step <= remaining; ++step) {
+			steps[f] = step;
+			addWeightings(steps, f + 1, remaining - step, weightings);
+		}
+	}
+
+	/**
+	 * Evaluate the settings on numThreads threads, filling in their metrics
+	 */
+	void run(List<Setting> settings, int numThreads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<Setting>> futures = new ArrayList<Future<Setting>>();
+		for (final Setting setting : settings) {
+			futures.add(executor.submit(new Callable<Setting>() {
+				@Override
+				public Setting call() throws Exception {
+					evaluate(setting);
+					return setting;
+				}
+			}));
+		}
+		try {
+			for (Future<Setting> future : futures)
+				future.get();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * P@K and MAP of every predicted field for one setting, as in dumpOutput
+	 */
+	void evaluate(Setting setting) throws IOException {
+
+		int nTestDocs = cache.numTestDocs();
+		Score[][] neighbors = new Score[nTestDocs][];
+		for (int q = 0; q < nTestDocs; ++q) {
+			neighbors[q] = cache.topN(q, setting.weights, setting.topN);
+			for (Score score : neighbors[q])
+				score.score = Math.pow(10.0, score.score);
+		}
+		MultiLabelClassificationNSDL.normalizeScores(neighbors, setting.topN);
+
+		setting.evaluations = new Evaluation[fieldsToPredict.length];
+		Map<String,Double> fieldCounts = new HashMap<String,Double>();
+		for (int f = 0; f < fieldsToPredict.length; ++f) {
+			Evaluation evaluation = new Evaluation();
+			for (int q = 0; q < nTestDocs; ++q) {
+				fieldCounts.clear();
+				for (Score score : neighbors[q]) {
+					for (String fieldValue : candidateLabels.get(score.docID)[f]) {
+						Double count = fieldCounts.get(fieldValue);
+						fieldCounts.put(fieldValue, (count == null) ? score.score : count + score.score);
+					}
+				}
+				PredictionResult result = MultiLabelClassificationNSDL.predictionResult(fieldsToPredict[f], q,
+						testURIs[q], actualValues[f][q], fieldCounts);
+				evaluation.add(result);
+			}
+			setting.evaluations[f] = evaluation;
+		}
+	}
+
+	/**
+	 * One line per setting and predicted field: weights, topN, field, MAP and P@1..P@K
+	 */
+	void write(BufferedWriter writer, List<Setting> settings) throws IOException {
+		for (Setting setting : settings) {
+			for (int f = 0; f < fieldsToPredict.length; ++f) {
+				for (double weight : setting.weights)
+					writer.append(weight + " ");
+				writer.append(setting.topN + " " + fieldsToPredict[f] + " " + setting.evaluations[f].map());
+				for (double precision : setting.evaluations[f].precisionAtK())
+					writer.append(" " + precision);
+				writer.append("\n");
+			}
+		}
+	}
+}
@@ -0,0 +1,411 @@
+package srmdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * Read-only copy of the postings of some fields of an index, for the scoring
+ * code that scans whole posting lists. Terms containing digits are left out,
+ * as everywhere else in scoring, and document lengths and the collection size
+ * of every field are stored with it.
+ *
+ * Postings are cut into blocks of BLOCK_SIZE documents. A block is one header
+ * word (number of postings, bits per doc id gap, bits per frequency) followed
+ * by the doc id gaps - 1 and the frequencies - 1, each bit-packed into 64 bit
+ * words. The postings of all fields are written first and memory-mapped when
+ * the snapshot is opened, the dictionary follows them and is read on the heap.
+ * The last 8 bytes of the file are the offset of the dictionary.
+ */
+class PostingsSnapshot {
+
+	static final int MAGIC = 0x50535331;
+	static final int BLOCK_SIZE = 128;
+	// maximum size of one mapped field
+	static final long MAX_FIELD_WORDS = Integer.MAX_VALUE / 8;
+
+	int maxDoc;
+	Map<String, FieldPostings> fields = new LinkedHashMap<String, FieldPostings>();
+
+	static class FieldPostings {
+		String fieldName;
+		int collectionSize;
+		int[] docLengths;
+
+		// sorted in index order
+		String[] terms;
+		int[] docFreqs;
+		// offset of the first block of every term in the words of the field
+		long[] offsets;
+
+		long dataStart;
+		long numWords;
+		LongBuffer data;
+
+		int numTerms() {
+			return terms.length;
+		}
+
+		/**
+		 * @return id of the term in this field, -1 if it is not in the snapshot
+		 */
+		int termId(String text) {
+			int id = Arrays.binarySearch(terms, text);
+			return (id < 0) ? -1 : id;
+		}
+
+		/**
+		 * A new cursor over the postings of a term. Cursors are not thread safe,
+		 * scans of many terms should seek one cursor per thread.
+		 */
+		PostingsCursor postings(int termId) {
+			return new PostingsCursor(this, termId);
+		}
+	}
+
+	/**
+	 * Sequential reader of the postings of one term, used like TermDocs.
+	 * Every block is decoded at once into arrays of doc ids and frequencies.
+	 */
+	static class PostingsCursor {
+
+		private LongBuffer data;
+		private long nextBlock;
+		private int remaining;
+		private int[] docs = new int[BLOCK_SIZE];
+		private int[] freqs = new int[BLOCK_SIZE];
+		private int blockSize;
+		private int position;
+		private int lastDoc = -1;
+
+		/**
+		 * A cursor to seek to the terms of field
+		 */
+		PostingsCursor(FieldPostings field) {
+			this.data = field.data;
+		}
+
+		PostingsCursor(FieldPostings field, int termId) {
+			this(field);
+			seek(field, termId);
+		}
+
+		void seek(FieldPostings field, int termId) {
+			data = field.data;
+			nextBlock = field.offsets[termId];
+			remaining = field.docFreqs[termId];
+			blockSize = 0;
+			position = 0;
+			lastDoc = -1;
+		}
+
+		boolean next() {
+			if (++position < blockSize)
+				return true;
+			if (remaining == 0)
+				return false;
+			decodeBlock();
+			return true;
+		}
+
+		int doc() {
+			return docs[position];
+		}
+
+		int freq() {
+			return freqs[position];
+		}
+
+		/**
+		 * Bulk read of the rest of the current block, as TermDocs.read
+		 * @return number of postings read, 0 at the end of the list
+		 */
+		int read(int[] docIds, int[] termFreqs) {
+			if (position + 1 >= blockSize) {
+				if (remaining == 0)
+					return 0;
+				decodeBlock();
+				position--;
+			}
+			int n = Math.min(docIds.length, blockSize - position - 1);
+			System.arraycopy(docs, position + 1, docIds, 0, n);
+			System.arraycopy(freqs, position + 1, termFreqs, 0, n);
+			position += n;
+			return n;
+		}
+
+		private void decodeBlock() {
+			long header = data.get((int) nextBlock);
+			blockSize = (int) (header >>> 16);
+			int docBits = (int) (header & 0xFF);
+			int freqBits = (int) ((header >>> 8) & 0xFF);
+			int docWords = (int) nextBlock + 1;
+			int freqWords = docWords + numWords(blockSize, docBits);
+			unpack(data, docWords, docBits, blockSize, docs);
+			unpack(data, freqWords, freqBits, blockSize, freqs);
+			int doc = lastDoc;
+			for (int i = 0; i < blockSize; ++i) {
+				doc += docs[i] + 1;
+				docs[i] = doc;
+				freqs[i]++;
+			}
+			lastDoc = doc;
+			nextBlock = freqWords + numWords(blockSize, freqBits);
+			remaining -= blockSize;
+			position = 0;
+		}
+	}
+
+	FieldPostings field(String fieldName) {
+		FieldPostings field = fields.get(fieldName);
+		if (field == null)
+			throw new IllegalArgumentException("Field " + fieldName + " is not in the postings snapshot");
+		return field;
+	}
+
+	/**
+	 * Write the postings of the given fields of an index
+	 * @param ir
+	 * @param fieldNames
+	 * @param file
+	 * @throws IOException
+	 */
+	static void write(IndexReader ir, String[] fieldNames, File file) throws IOException {
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		int maxDoc = ir.maxDoc();
+		FieldPostings[] fields = new FieldPostings[fieldNames.length];
+		long words = 0;
+
+		int[] docs = new int[BLOCK_SIZE];
+		int[] freqs = new int[BLOCK_SIZE];
+		long[] packed = new long[2 * BLOCK_SIZE];
+		for (int f = 0; f < fieldNames.length; ++f) {
+			String fieldName = fieldNames[f];
+			FieldPostings field = new FieldPostings();
+			field.fieldName = fieldName;
+			field.docLengths = new int[maxDoc];
+			field.dataStart = words * 8;
+
+			int numTerms = 0;
+			String[] terms = new String[1024];
+			int[] docFreqs = new int[1024];
+			long[] offsets = new long[1024];
+			long fieldWords = 0;
+
+			TermEnum termEnum = ir.terms(new Term(fieldName, ""));
+			TermDocs termDocs = ir.termDocs();
+			do {
+				Term t = termEnum.term();
+				if (t == null || !t.field().equals(fieldName))
+					break;
+				if (StructuredRelevanceModel.containsNumber(t.text()))
+					continue;
+				termDocs.seek(termEnum);
+				long offset = fieldWords;
+				int docFreq = 0;
+				int lastDoc = -1;
+				int n;
+				while ((n = readBlock(termDocs, docs, freqs)) > 0) {
+					int docBits = 0;
+					int freqBits = 0;
+					for (int i = 0; i < n; ++i) {
+						int d = docs[i];
+						field.docLengths[d] += freqs[i];
+						field.collectionSize += freqs[i];
+						docs[i] = d - lastDoc - 1;
+						lastDoc = d;
+						freqs[i]--;
+						docBits = Math.max(docBits, bitsRequired(docs[i]));
+						freqBits = Math.max(freqBits, bitsRequired(freqs[i]));
+					}
+					out.writeLong(((long) n) << 16 | freqBits << 8 | docBits);
+					int numPacked = pack(docs, n, docBits, packed, 0);
+					numPacked = pack(freqs, n, freqBits, packed, numPacked);
+					for (int i = 0; i < numPacked; ++i)
+						out.writeLong(packed[i]);
+					fieldWords += 1 + numPacked;
+					docFreq += n;
+				}
+				if (docFreq == 0)
+					continue;
+				if (numTerms == terms.length) {
+					terms = Arrays.copyOf(terms, 2 * numTerms);
+					docFreqs = Arrays.copyOf(docFreqs, 2 * numTerms);
+					offsets = Arrays.copyOf(offsets, 2 * numTerms);
+				}
+				terms[numTerms] = t.text();
+				docFreqs[numTerms] = docFreq;
+				offsets[numTerms] = offset;
+				numTerms++;
+			} while (termEnum.next());
+			termDocs.close();
+			termEnum.close();
+
+			if (fieldWords > MAX_FIELD_WORDS) {
+				out.close();
+				throw new IOException("Postings of " + fieldName + " are too large for one mapping: " + fieldWords * 8 + " bytes");
+			}
+			field.terms = Arrays.copyOf(terms, numTerms);
+			field.docFreqs = Arrays.copyOf(docFreqs, numTerms);
+			field.offsets = Arrays.copyOf(offsets, numTerms);
+			field.numWords = fieldWords;
+			fields[f] = field;
+			words += fieldWords;
+			System.out.println("Postings snapshot " + fieldName + ": " + numTerms + " terms, " + fieldWords * 8 + " bytes");
+		}
+
+		long dictionaryStart = words * 8;
+		out.writeInt(MAGIC);
+		out.writeInt(maxDoc);
+		out.writeInt(fields.length);
+		for (FieldPostings field : fields) {
+			out.writeUTF(field.fieldName);
+			out.writeInt(field.collectionSize);
+			for (int d = 0; d < maxDoc; ++d)
+				out.writeInt(field.docLengths[d]);
+			out.writeLong(field.dataStart);
+			out.writeLong(field.numWords);
+			out.writeInt(field.terms.length);
+			for (int i = 0; i < field.terms.length; ++i) {
+				out.writeUTF(field.terms[i]);
+				out.writeInt(field.docFreqs[i]);
+				out.writeLong(field.offsets[i]);
+			}
+		}
+		out.writeLong(dictionaryStart);
+		out.close();
+	}
+
+	/**
+	 * Map the postings of a snapshot written by write
+	 */
+	static PostingsSnapshot open(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			raf.seek(raf.length() - 8);
+			long dictionaryStart = raf.readLong();
+			channel.position(dictionaryStart);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a postings snapshot");
+
+			PostingsSnapshot snapshot = new PostingsSnapshot();
+			snapshot.maxDoc = in.readInt();
+			int numFields = in.readInt();
+			for (int f = 0; f < numFields; ++f) {
+				FieldPostings field = new FieldPostings();
+				field.fieldName = in.readUTF();
+				field.collectionSize = in.readInt();
+				field.docLengths = new int[snapshot.maxDoc];
+				for (int d = 0; d < snapshot.maxDoc; ++d)
+					field.docLengths[d] = in.readInt();
+				field.dataStart = in.readLong();
+				field.numWords = in.readLong();
+				int numTerms = in.readInt();
+				field.terms = new String[numTerms];
+				field.docFreqs = new int[numTerms];
+				field.offsets = new long[numTerms];
+				for (int i = 0; i < numTerms; ++i) {
+					field.terms[i] = in.readUTF();
+					field.docFreqs[i] = in.readInt();
+					field.offsets[i] = in.readLong();
+				}
+				// DataOutputStream writes big-endian longs
+				field.data = channel.map(FileChannel.MapMode.READ_ONLY, field.dataStart, field.numWords * 8)
+						.order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+				snapshot.fields.put(field.fieldName, field);
+			}
+			return snapshot;
+		}
+		finally {
+			// the mappings stay valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Fill docs and freqs with the next postings, up to a full block
+	 */
+	private static int readBlock(TermDocs termDocs, int[] docs, int[] freqs) throws IOException {
+		int n = 0;
+		while (n < BLOCK_SIZE && termDocs.next()) {
+			docs[n] = termDocs.doc();
+			freqs[n] = termDocs.freq();
+			n++;
+		}
+		return n;
+	}
+
+	private static int bitsRequired(int value) {
+		return 32 - Integer.numberOfLeadingZeros(value);
+	}
+
+	private static int numWords(int count, int bits) {
+		return (int) (((long) count * bits + 63) >>> 6);
+	}
+
+	/**
+	 * Pack count values of bits bits each into words, starting at words[from]
+	 * @return index of the word after the last one written
+	 */
+	private static int pack(int[] values, int count, int bits, long[] words, int from) {
+		int numWords = numWords(count, bits);
+		Arrays.fill(words, from, from + numWords, 0L);
+		long bitPos = 0;
+		for (int i = 0; i < count; ++i, bitPos += bits) {
+			int w = from + (int) (bitPos >>> 6);
+			int shift = (int) (bitPos & 63);
+			long v = values[i] & 0xFFFFFFFFL;
+			words[w] |= v << shift;
+			if (shift + bits > 64)
+				words[w + 1] |= v >>> (64 - shift);
+		}
+		return from + numWords;
+	}
+
+	private static void unpack(LongBuffer data, int from, int bits, int count, int[] values) {
+		if (bits == 0) {
+			Arrays.fill(values, 0, count, 0);
+			return;
+		}
+		long mask = (1L << bits) - 1;
+		long bitPos = 0;
+		int currentIndex = -1;
+		long current = 0;
+		for (int i = 0; i < count; ++i, bitPos += bits) {
+			int w = (int) (bitPos >>> 6);
+			int shift = (int) (bitPos & 63);
+			if (w != currentIndex) {
+				current = data.get(from + w);
+				currentIndex = w;
+			}
+			long v = current >>> shift;
+			if (shift + bits > 64) {
+				current = data.get(from + w + 1);
+				currentIndex = w + 1;
+				v |= current << (64 - shift);
+			}
+			values[i] = (int) (v & mask);
+		}
+	}
+}
@@ -1,12 +1,12 @@
 package srmdata;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
-import org.apache.lucene.index.TermEnum;
 
 public class PriorCalculator {
 
@@ -18,61 +18,102 @@ public class PriorCalculator {
 	IndexReader trainIR;
 	IndexReader testIR;
 	String fieldName;
-	List<Term> allTerms;
+	// training postings read from a snapshot instead of trainIR, may be null
+	PostingsSnapshot.FieldPostings trainPostings;
+	// ids in trainPostings of the terms of termJoin when they are a subset of its terms, null otherwise
+	int[] postingsTermIds;
+	TermJoin termJoin;
+	Term[] trainTerms;
 	int[] doc_lengths;
 	double[][][] modelScores;
+	// per thread and train document, sum of log10(1 - P(t|d)) over the terms of the thread
+	double[][] baseScores;
 
 	public PriorCalculator(IndexReader testIR, IndexReader trainIR, String fieldName) {
 		this.trainIR = trainIR;
 		this.testIR = testIR;
 		this.fieldName = fieldName;
 	}
+
+	/**
+	 * Read the training postings from a snapshot of the training index
+	 */
+	public PriorCalculator(IndexReader testIR, PostingsSnapshot.FieldPostings trainPostings) {
+		this.trainPostings = trainPostings;
+		this.testIR = testIR;
+		this.fieldName = trainPostings.fieldName;
+	}
 	
-	double[][] computePriors() throws Exception {
+	/**
+	 * Find the terms, document lengths and collection size of the field
+	 * @throws IOException
+	 */
+	void prepare() throws IOException {
 
 		// assume there are no holes in document ids for train/test indices
-		nTrainDocs = trainIR.numDocs();
+		nTrainDocs = (trainPostings != null) ? trainPostings.docLengths.length : trainIR.numDocs();
 		nTestDocs = testIR.numDocs();
 
-		// find number of terms in all training documents for the given field
-		doc_lengths = new int[nTrainDocs];
+		if (trainPostings != null) {
+			doc_lengths = trainPostings.docLengths;
+			collectionSize = trainPostings.collectionSize;
+			termJoin = TermJoin.compute(trainPostings.terms, testIR, fieldName);
+		}
+		else {
+			// find number of terms in all training documents for the given field
+			doc_lengths = new int[nTrainDocs];
+			collectionSize = StructuredRelevanceModel.findCollectionSize(trainIR, fieldName, doc_lengths);
+			termJoin = TermJoin.compute(trainIR, testIR, fieldName);
+			createTerms();
+		}
+	}
+
+	/**
+	 * Set the terms, document lengths and collection size of the field found by
+	 * a pass over the dictionary shared with other fields
+	 * @param terms train terms of the field without digits, in index order
+	 * @throws IOException
+	 */
+	void prepare(String[] terms, int[] docLengths, int collectionSize) throws IOException {
+		nTrainDocs = docLengths.length;
+		nTestDocs = testIR.numDocs();
+		doc_lengths = docLengths;
+		this.collectionSize = collectionSize;
+		termJoin = TermJoin.compute(terms, testIR, fieldName);
+		if (trainPostings == null)
+			createTerms();
+		else if (terms != trainPostings.terms) {
+			postingsTermIds = new int[terms.length];
+			for (int i = 0; i < terms.length; ++i)
+				postingsTermIds[i] = trainPostings.termId(terms[i]);
+		}
+	}
+
+	private void createTerms() {
+		trainTerms = new Term[termJoin.numTerms()];
+		for (int i = 0; i < trainTerms.length; ++i)
+			trainTerms[i] = new Term(fieldName, termJoin.terms[i]);
+	}
+
+	double[][] computePriors() throws Exception {
+
+		prepare();
 
 		modelScores = new double[numThreads][nTrainDocs][nTestDocs];
+		baseScores = new double[numThreads][nTrainDocs];
 		for (int threadNum = 0; threadNum < numThreads; ++threadNum) {
 			for (int i = 0; i < modelScores[threadNum].length; ++i)
 				for (int j = 0; j < modelScores[threadNum][i].length; ++j)
 					modelScores[threadNum][i][j] = 0.0;
 		}
 
-		collectionSize = StructuredRelevanceModel.findCollectionSize(trainIR, fieldName, doc_lengths);
-		allTerms = new ArrayList<Term>();
-
-		TermEnum terms = trainIR.terms();
-//		boolean trainDone = false;
-		while (true) {
-			boolean hasNext = terms.next();
-			if (!hasNext) {
-				terms.close();
-//				if (trainDone)
-					break;
-//				terms = trainIR.terms();
-//				trainDone = true;
-//				continue;
-			}
-			Term t = terms.term();
-			if (!t.field().equals(fieldName) || StructuredRelevanceModel.containsNumber(t.text()))
-				continue;
-			allTerms.add(t);
-		}
-		terms.close();
-
 		int fromIndex = 0;
 		int toIndex = -1;
 
-		int numTerms = allTerms.size();
+		int numTerms = termJoin.numTerms();
 		int chunkSize = (int) Math.ceil((double)numTerms / numThreads);
 
-		System.out.println("Number of Terms: " + numTerms);
+		System.out.println("Number of Terms: " + numTerms + " in test set: " + termJoin.numShared);
 		System.out.println("Chunk Size: " + chunkSize);
 		
 		List<Thread> threads = new ArrayList<Thread>();
@@ -82,7 +123,7 @@ public class PriorCalculator {
 			if (fromIndex < numTerms) {
 				toIndex = (toIndex < numTerms) ? toIndex : numTerms-1;
 				System.out.println("Worker " + threadNum + " fromIndex: " + fromIndex + " toIndex: " + toIndex);
-				Runnable runnable = new PriorCalculatorRunnable(fromIndex, toIndex, modelScores[threadNum]);
+				Runnable runnable = new PriorCalculatorRunnable(fromIndex, toIndex, modelScores[threadNum], baseScores[threadNum]);
 				Thread worker = new Thread(runnable);
 				worker.start();
 				threads.add(worker);
@@ -100,11 +141,8 @@ public class PriorCalculator {
 			}
 		}
 		for (int threadNum = 0; threadNum < numThreads; ++threadNum) {
-			for (int i = 0; i < finalModelScores.length; ++i) {
-				for (int j = 0; j < finalModelScores[i].length; ++j) {
-					finalModelScores[i][j] += modelScores[threadNum][i][j];
-				}
-			}
+			for (int i = 0; i < finalModelScores.length; ++i)
+				ScoreKernels.addRow(finalModelScores[i], modelScores[threadNum][i], baseScores[threadNum][i]);
 		}
 		
 		return finalModelScores;
@@ -115,46 +153,59 @@ public class PriorCalculator {
 		int fromIndex;
 		int toIndex;
 		double[][] localModelScores;
+		double[] localBaseScores;
 
-		public PriorCalculatorRunnable(int fromIndex, int toIndex, double[][] localModelScores) {
+		public PriorCalculatorRunnable(int fromIndex, int toIndex, double[][] localModelScores, double[] localBaseScores) {
 			this.fromIndex = fromIndex;
 			this.toIndex = toIndex;
 			this.localModelScores = localModelScores;
-			for (int i = 0; i < this.localModelScores.length; ++i)
-				for (int j = 0; j < this.localModelScores[i].length; ++j)
-					this.localModelScores[i][j] = 0.0;
+			this.localBaseScores = localBaseScores;
 		}
 
 		@Override
 		public void run() {
 			try {
-				double score[] = new double[2];
+				// everything used per term is allocated once per worker
 				double[] mle = new double[nTrainDocs];
+				SmoothingKernel kernel = new SmoothingKernel();
+				PostingsSnapshot.PostingsCursor cursor = null;
+				TermDocs trainTermDocs = null;
+				if (trainPostings != null)
+					cursor = new PostingsSnapshot.PostingsCursor(trainPostings);
+				else
+					trainTermDocs = trainIR.termDocs();
 				for (int index = fromIndex; index <= toIndex; ++index) {
-					Term t = allTerms.get(index);
-					StructuredRelevanceModel.compute_mlestimate(trainIR, fieldName, t, doc_lengths, collectionSize, mle);
-					if (mle == null)
-						continue;
-	
-					int[] termDocsArr = new int[nTestDocs];
-					for (int i = 0; i < termDocsArr.length; ++i)
-						termDocsArr[i] = 1;
-					TermDocs termDocs = testIR.termDocs(t);
-					while (termDocs.next()) {
-						termDocsArr[termDocs.doc()] = 0;
+					if (trainPostings != null) {
+						int termId = (postingsTermIds != null) ? postingsTermIds[index] : index;
+						// a term without train postings is skipped, as by the index path
+						if (termId < 0)
+							continue;
+						StructuredRelevanceModel.compute_mlestimate(trainPostings, termId, cursor, doc_lengths, collectionSize, kernel, mle);
 					}
-					termDocs.close();
-	
+					else if (StructuredRelevanceModel.compute_mlestimate(trainTermDocs, trainTerms[index], doc_lengths, collectionSize, kernel, mle) == null)
+						continue;
+
+					// every test document gets the absent score through localBaseScores,
+					// only the test documents containing the term are visited
+					int[] testDocs = termJoin.testDocs[index];
+					// the complement of the default estimate is shared by all documents without the term
+					double defaultAbsent = SmoothingKernel.log10Complement(kernel.defaultEstimate);
 	//				long t1 = System.nanoTime();
 					for (int md = 0; md < nTrainDocs; ++md) {
-						score[0] = mle[md];
-						score[1] = Math.log10(1.0-Math.pow(10,score[0]));
-						for (int q = 0; q < nTestDocs; ++q)
-							localModelScores[md][q] += score[termDocsArr[q]];
+						double present = mle[md];
+						double absent = (present == kernel.defaultEstimate) ? defaultAbsent : SmoothingKernel.log10Complement(present);
+						localBaseScores[md] += absent;
+						if (testDocs != null) {
+							double[] row = localModelScores[md];
+							for (int q : testDocs)
+								row[q] += present - absent;
+						}
 					}
 	//				long t2 = System.nanoTime();
 	//				System.out.println("Time Taken: " + (t2-t1)/1E6);
 				}
+				if (trainTermDocs != null)
+					trainTermDocs.close();
 			}
 			catch (Exception E) {
 				System.err.println("Exception Caught: " + E.getMessage());
@@ -0,0 +1,108 @@
+package srmdata;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Dense loops over rows of scores, written as plain counted loops over
+ * contiguous doubles without indirect indexing so that the JIT compiles them
+ * to SIMD instructions (superword vectorization) on any CPU it supports.
+ */
+class ScoreKernels {
+
+	/**
+	 * dst[i] += src[i] + c
+	 */
+	static void addRow(double[] dst, double[] src, double c) {
+		for (int i = 0; i < dst.length; ++i)
+			dst[i] += src[i] + c;
+	}
+
+	/**
+	 * dst[i] += src[i] * factor
+	 */
+	static void addScaled(double[] dst, double[] src, double factor) {
+		for (int i = 0; i < dst.length; ++i)
+			dst[i] += src[i] * factor;
+	}
+
+	/**
+	 * row[i] *= factor for from <= i < to
+	 */
+	static void scale(double[] row, int from, int to, double factor) {
+		for (int i = from; i < to; ++i)
+			row[i] *= factor;
+	}
+
+	/**
+	 * row[i] += c for from <= i < to
+	 */
+	static void add(double[] row, int from, int to, double c) {
+		for (int i = from; i < to; ++i)
+			row[i] += c;
+	}
+
+	/**
+	 * Time the per-term update of one row of test documents: the former
+	 * select-by-index loop (row[q] += score[absent[q]]), a dense add followed
+	 * by the matching positions, and the run-wise kernel. Results depend on the
+	 * CPU and JVM, so they are printed with both.
+	 * ScoreKernels [rowLength [matchesPerRow [rounds]]]
+	 */
+	public static void main(String[] args) {
+
+		int rowLength = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int numMatches = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		int numRows = 2000;
+
+		System.out.println("os.arch: " + System.getProperty("os.arch") + " processors: " +
+				Runtime.getRuntime().availableProcessors() + " java: " + System.getProperty("java.vm.name") +
+				" " + System.getProperty("java.version"));
+
+		Random random = new Random(0);
+		int[] matches = new int[numMatches];
+		for (int i = 0; i < numMatches; ++i)
+			matches[i] = random.nextInt(rowLength);
+		Arrays.sort(matches);
+		int[] absent = new int[rowLength];
+		Arrays.fill(absent, 1);
+		for (int q : matches)
+			absent[q] = 0;
+		double[] present = new double[numRows];
+		for (int md = 0; md < numRows; ++md)
+			present[md] = -3.0 - random.nextDouble();
+		double[] row = new double[rowLength];
+		double[] score = new double[2];
+
+		for (int round = 0; round < rounds; ++round) {
+			long t1 = System.nanoTime();
+			for (int md = 0; md < numRows; ++md) {
+				score[0] = present[md];
+				score[1] = -1e-4;
+				for (int q = 0; q < rowLength; ++q)
+					row[q] += score[absent[q]];
+			}
+			long t2 = System.nanoTime();
+			for (int md = 0; md < numRows; ++md) {
+				add(row, 0, rowLength, -1e-4);
+				for (int q : matches)
+					row[q] += present[md] + 1e-4;
+			}
+			long t3 = System.nanoTime();
+			for (int md = 0; md < numRows; ++md) {
+				int q = 0;
+				for (int match : matches) {
+					add(row, q, match, -1e-4);
+					row[match] += present[md];
+					q = match + 1;
+				}
+				add(row, q, rowLength, -1e-4);
+			}
+			long t4 = System.nanoTime();
+			double cells = ((double)numRows) * rowLength;
+			System.out.println("round " + round + " ns/cell: indexed " + (t2-t1) / cells +
+					" dense+matches " + (t3-t2) / cells + " runs " + (t4-t3) / cells + " (" + row[0] + ")");
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package srmdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+import srmdata.StructuredRelevanceModel.DescendingScoreComp;
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Splits a train index into doc id ranges and scores every test document
+ * against each range in a separate ShardWorker process. Workers first compute
+ * the statistics of their shard, which are merged here into the global
+ * statistics that every worker then scores with. The per shard top K lists are
+ * merged into the global top K neighbors of every test document.
+ *
+ * Workers communicate through files in workDir, so for workers on other
+ * nodes the indexes and workDir have to be on a shared filesystem.
+ */
+class ShardCoordinator {
+
+	String trainIndexName;
+	String testIndexName;
+	int numShards;
+	int topK;
+	File workDir;
+	// host to run each shard on through ssh, null entries run on this host
+	String[] hosts;
+	String workerJvmArgs = "-Xmx2g";
+	// java executable of the workers on other hosts, looked up on their PATH
+	String remoteJava = "java";
+
+	/**
+	 * @param hosts host to run each shard on, null to run all shards on this host
+	 */
+	ShardCoordinator(String trainIndexName, String testIndexName, int numShards, int topK, File workDir, String[] hosts) {
+		if (hosts != null && hosts.length != numShards)
+			throw new IllegalArgumentException("Expected a host for each of " + numShards + " shards, got " + hosts.length);
+		// workers on other hosts start in the home directory, so every path they get is absolute
+		this.trainIndexName = new File(trainIndexName).getAbsolutePath();
+		this.testIndexName = new File(testIndexName).getAbsolutePath();
+		this.numShards = numShards;
+		this.topK = topK;
+		this.workDir = workDir.getAbsoluteFile();
+		this.hosts = (hosts != null) ? hosts : new String[numShards];
+	}
+
+	/**
+	 * @return top K train documents of every test document, sorted by
+	 * descending combined log score
+	 */
+	Score[][] run() throws Exception {
+
+		workDir.mkdirs();
+		IndexReader trainIR = IndexReader.open(FSDirectory.open(new File(trainIndexName)), true);
+		int nTrainDocs = trainIR.maxDoc();
+		trainIR.close();
+
+		int shardSize = (int) Math.ceil((double)nTrainDocs / numShards);
+		int[] fromDoc = new int[numShards];
+		int[] toDoc = new int[numShards];
+		for (int shard = 0; shard < numShards; ++shard) {
+			fromDoc[shard] = Math.min(shard * shardSize, nTrainDocs);
+			toDoc[shard] = Math.min(fromDoc[shard] + shardSize, nTrainDocs);
+			System.out.println("Shard " + shard + " fromDoc: " + fromDoc[shard] + " toDoc: " + toDoc[shard]);
+		}
+
+		long t1, t2;
+		t1 = System.nanoTime();
+		List<Process> workers = new ArrayList<Process>();
+		for (int shard = 0; shard < numShards; ++shard) {
+			workers.add(launch(shard, "stats", trainIndexName,
+					String.valueOf(fromDoc[shard]), String.valueOf(toDoc[shard]),
+					shardStatsPrefix(shard)));
+		}
+		waitFor(workers);
+
+		for (String fieldName : CombinedScorer.SCORING_FIELDS) {
+			List<FieldStatistics> parts = new ArrayList<FieldStatistics>();
+			for (int shard = 0; shard < numShards; ++shard)
+				parts.add(FieldStatistics.read(new File(shardStatsPrefix(shard) + "_" + fieldName)));
+			FieldStatistics.merge(parts).write(new File(globalStatsPrefix() + "_" + fieldName));
+		}
+		t2 = System.nanoTime();
+		System.out.println("Time Taken Shard Statistics: " + ((double)(t2-t1)) / 1E9);
+
+		t1 = System.nanoTime();
+		workers.clear();
+		for (int shard = 0; shard < numShards; ++shard) {
+			workers.add(launch(shard, "score", trainIndexName, testIndexName,
+					String.valueOf(fromDoc[shard]), String.valueOf(toDoc[shard]),
+					globalStatsPrefix(), String.valueOf(topK), topKFile(shard).getPath()));
+		}
+		waitFor(workers);
+		t2 = System.nanoTime();
+		System.out.println("Time Taken Shard Scoring: " + ((double)(t2-t1)) / 1E9);
+
+		return mergeTopK();
+	}
+
+	private String shardStatsPrefix(int shard) {
+		return new File(workDir, "stats_" + shard).getPath();
+	}
+
+	private String globalStatsPrefix() {
+		return new File(workDir, "stats_global").getPath();
+	}
+
+	private File topKFile(int shard) {
+		return new File(workDir, "topk_" + shard);
+	}
+
+	private Process launch(int shard, String... workerArgs) throws IOException {
+		List<String> command = new ArrayList<String>();
+		if (hosts[shard] != null) {
+			command.add("ssh");
+			command.add(hosts[shard]);
+			command.add(remoteJava);
+		}
+		else {
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		}
+		command.add(workerJvmArgs);
+		command.add("-cp");
+		command.add(absoluteClassPath());
+		command.add(ShardWorker.class.getName());
+		command.addAll(Arrays.asList(workerArgs));
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		Thread output = new Thread(new OutputForwarder("Shard " + shard + ": ", process.getInputStream()));
+		output.setDaemon(true);
+		output.start();
+		return process;
+	}
+
+	/**
+	 * Class path of this JVM with every entry made absolute
+	 */
+	private static String absoluteClassPath() {
+		StringBuilder classPath = new StringBuilder();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if (entry.length() == 0)
+				continue;
+			if (classPath.length() > 0)
+				classPath.append(File.pathSeparator);
+			classPath.append(new File(entry).getAbsolutePath());
+		}
+		return classPath.toString();
+	}
+
+	/**
+	 * Wait for all workers, destroying those still running when one fails
+	 */
+	private static void waitFor(List<Process> workers) throws Exception {
+		int shard = 0;
+		try {
+			for (; shard < workers.size(); ++shard) {
+				int exitCode = workers.get(shard).waitFor();
+				if (exitCode != 0)
+					throw new Exception("Shard worker " + shard + " failed with exit code " + exitCode);
+			}
+		}
+		finally {
+			for (; shard < workers.size(); ++shard)
+				workers.get(shard).destroy();
+		}
+	}
+
+	private Score[][] mergeTopK() throws IOException {
+
+		DataInputStream[] inputs = new DataInputStream[numShards];
+		int nTestDocs = 0;
+		for (int shard = 0; shard < numShards; ++shard) {
+			inputs[shard] = new DataInputStream(new BufferedInputStream(new FileInputStream(topKFile(shard))));
+			nTestDocs = inputs[shard].readInt();
+		}
+
+		DescendingScoreComp comp = new DescendingScoreComp();
+		Score[][] neighbors = new Score[nTestDocs][];
+		List<Score> candidates = new ArrayList<Score>();
+		for (int q = 0; q < nTestDocs; ++q) {
+			candidates.clear();
+			for (int shard = 0; shard < numShards; ++shard) {
+				int count = inputs[shard].readInt();
+				for (int i = 0; i < count; ++i) {
+					Score score = new Score();
+					score.docID = inputs[shard].readInt();
+					score.score = inputs[shard].readDouble();
+					candidates.add(score);
+				}
+			}
+			Score[] merged = candidates.toArray(new Score[candidates.size()]);
+			Arrays.sort(merged, comp);
+			neighbors[q] = Arrays.copyOf(merged, Math.min(topK, merged.length));
+		}
+
+		for (int shard = 0; shard < numShards; ++shard)
+			inputs[shard].close();
+		return neighbors;
+	}
+
+	static class OutputForwarder implements Runnable {
+
+		String prefix;
+		InputStream in;
+
+		OutputForwarder(String prefix, InputStream in) {
+			this.prefix = prefix;
+			this.in = in;
+		}
+
+		@Override
+		public void run() {
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+				String line;
+				while ((line = reader.readLine()) != null)
+					System.out.println(prefix + line);
+				reader.close();
+			}
+			catch (IOException e) {
+				System.err.println("Exception Caught: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package srmdata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.OpenBitSet;
+
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Worker process for one shard (a range of doc ids) of the train index.
+ *
+ * stats <trainIndex> <fromDoc> <toDoc> <outPrefix>
+ *     writes the statistics of the shard for every scoring field to outPrefix_<field>
+ *
+ * score <trainIndex> <testIndex> <fromDoc> <toDoc> <statsPrefix> <topK> <outFile>
+ *     scores every test document against the shard using the merged global
+ *     statistics in statsPrefix_<field> and writes the top K train documents
+ */
+public class ShardWorker {
+
+	public static void main(String[] args) throws Exception {
+
+		String mode = args[0];
+		IndexReader trainIR = IndexReader.open(FSDirectory.open(new File(args[1])), true);
+
+		if (mode.equals("stats")) {
+			OpenBitSet shardDocs = shardDocs(trainIR, Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+			for (String fieldName : CombinedScorer.SCORING_FIELDS) {
+				FieldStatistics stats = FieldStatistics.compute(trainIR, fieldName, shardDocs);
+				stats.write(new File(args[4] + "_" + fieldName));
+			}
+		}
+		else if (mode.equals("score")) {
+			IndexReader testIR = IndexReader.open(FSDirectory.open(new File(args[2])), true);
+			OpenBitSet shardDocs = shardDocs(trainIR, Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+			int topK = Integer.parseInt(args[6]);
+			score(trainIR, testIR, shardDocs, args[5], topK, new File(args[7]));
+			testIR.close();
+		}
+		else {
+			throw new IllegalArgumentException("Unknown mode: " + mode);
+		}
+
+		trainIR.close();
+	}
+
+	private static OpenBitSet shardDocs(IndexReader trainIR, int fromDoc, int toDoc) {
+		OpenBitSet docs = new OpenBitSet(trainIR.maxDoc());
+		docs.set(fromDoc, toDoc);
+		return docs;
+	}
+
+	private static void score(IndexReader trainIR, IndexReader testIR, OpenBitSet shardDocs,
+			String statsPrefix, int topK, File outFile) throws Exception {
+
+		FieldStatistics[] stats = new FieldStatistics[CombinedScorer.SCORING_FIELDS.length];
+		for (int f = 0; f < stats.length; ++f)
+			stats[f] = FieldStatistics.read(new File(statsPrefix + "_" + CombinedScorer.SCORING_FIELDS[f]));
+		CombinedScorer scorer = new CombinedScorer(trainIR, testIR, stats, CombinedScorer.FIELD_WEIGHTS, shardDocs);
+		MaxScoreEvaluator evaluator = new MaxScoreEvaluator(scorer);
+
+		int nTestDocs = testIR.maxDoc();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)));
+		out.writeInt(nTestDocs);
+		for (int q = 0; q < nTestDocs; ++q) {
+			Score[] topDocs = evaluator.topK(q, topK);
+			System.out.println("docID: " + q + " scored: " + evaluator.numScored + " skipped: " + evaluator.numSkipped);
+			out.writeInt(topDocs.length);
+			for (Score score : topDocs) {
+				out.writeInt(score.docID);
+				out.writeDouble(score.score);
+			}
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,294 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.OpenBitSet;
+
+import srmdata.StructuredRelevanceModel.DescendingScoreComp;
+import srmdata.StructuredRelevanceModel.Score;
+
+/**
+ * Computes the same log-likelihood as PriorCalculator for one test document at a
+ * time, without enumerating the whole vocabulary per test document.
+ *
+ * score(d,q) = sum over t not in q of log10(1 - P(t|d)) + sum over t in q of log10(P(t|d))
+ *            = base[d] + sum over t in q of presenceGain[t]
+ *                      + sum over t in q and d of correction(t,d)
+ *
+ * base[d] and presenceGain[t] do not depend on the test document, so scoring a
+ * test document only touches the train postings of its own terms.
+ */
+class SparseScorer {
+
+	FieldStatistics stats;
+	IndexReader trainIR;
+	OpenBitSet trainDocs;
+	int minDoc;
+	int maxDoc;
+
+	double[] base;
+	double[] presenceGain;
+
+	/**
+	 * @param trainIR
+	 * @param stats statistics of the whole training set (may be computed on another reader)
+	 * @param trainDocs documents of trainIR to score, null for all documents
+	 * @throws IOException
+	 */
+	SparseScorer(IndexReader trainIR, FieldStatistics stats, OpenBitSet trainDocs) throws IOException {
+		this.trainIR = trainIR;
+		this.stats = stats;
+		if (trainDocs == null) {
+			trainDocs = new OpenBitSet(trainIR.maxDoc());
+			trainDocs.set(0, trainIR.maxDoc());
+		}
+		this.trainDocs = trainDocs;
+		this.minDoc = trainDocs.nextSetBit(0);
+		this.maxDoc = trainDocs.prevSetBit(trainIR.maxDoc() - 1);
+		computeBase();
+	}
+
+	private void computeBase() throws IOException {
+
+		int numTerms = stats.numTerms();
+		presenceGain = new double[numTerms];
+		double absentAll = 0.0;
+		for (int t = 0; t < numTerms; ++t) {
+			double defaultVal = stats.defaultEstimate(t);
+			double defaultComplement = FieldStatistics.complement(defaultVal);
+			presenceGain[t] = defaultVal - defaultComplement;
+			absentAll += defaultComplement;
+		}
+
+		base = new double[trainIR.maxDoc()];
+		for (int d = minDoc; d >= 0 && d <= maxDoc; d = trainDocs.nextSetBit(d + 1))
+			base[d] = absentAll;
+		if (minDoc < 0)
+			return;
+
+		TermEnum termEnum = trainIR.terms(new Term(stats.fieldName, ""));
+		TermDocs termDocs = trainIR.termDocs();
+		do {
+			Term t = termEnum.term();
+			if (t == null || !t.field().equals(stats.fieldName))
+				break;
+			int termId = stats.termId(t.text());
+			if (termId < 0)
+				continue;
+			double defaultComplement = FieldStatistics.complement(stats.defaultEstimate(termId));
+			termDocs.seek(termEnum);
+			if (!termDocs.skipTo(minDoc))
+				continue;
+			do {
+				int d = termDocs.doc();
+				if (d > maxDoc)
+					break;
+				if (!trainDocs.fastGet(d))
+					continue;
+				double val = stats.estimate(termId, termDocs.freq(), stats.docLengths[d]);
+				base[d] += FieldStatistics.complement(val) - defaultComplement;
+			} while (termDocs.next());
+		} while (termEnum.next());
+		termDocs.close();
+		termEnum.close();
+	}
+
+	/**
+	 * Add weight * score(d, q) to scores[d] for every train document d
+	 * @param queryTerms term ids of the test document
+	 * @param weight
+	 * @param scores indexed by train doc id
+	 * @throws IOException
+	 */
+	void score(int[] queryTerms, double weight, double[] scores) throws IOException {
+
+		if (minDoc < 0)
+			return;
+
+		double gain = 0.0;
+		for (int termId : queryTerms)
+			gain += presenceGain[termId];
+		for (int d = minDoc; d >= 0 && d <= maxDoc; d = trainDocs.nextSetBit(d + 1))
+			scores[d] += weight * (base[d] + gain);
+
+		TermDocs termDocs = trainIR.termDocs();
+		for (int termId : queryTerms) {
+			termDocs.seek(new Term(stats.fieldName, stats.terms[termId]));
+			if (!termDocs.skipTo(minDoc))
+				continue;
+			do {
+				int d = termDocs.doc();
+				if (d > maxDoc)
+					break;
+				if (!trainDocs.fastGet(d))
+					continue;
+				scores[d] += weight * correction(termId, termDocs.freq(), d);
+			} while (termDocs.next());
+		}
+		termDocs.close();
+	}
+
+	/**
+	 * Add weight * score(d, q) to scores[d] for the given train documents only
+	 * @param queryTerms term ids of the test document
+	 * @param weight
+	 * @param candidates sorted train doc ids
+	 * @param scores indexed by train doc id
+	 * @throws IOException
+	 */
+	void scoreCandidates(int[] queryTerms, double weight, int[] candidates, double[] scores) throws IOException {
+
+		double gain = 0.0;
+		for (int termId : queryTerms)
+			gain += presenceGain[termId];
+		for (int d : candidates)
+			scores[d] += weight * (base[d] + gain);
+
+		TermDocs termDocs = trainIR.termDocs();
+		for (int termId : queryTerms) {
+			termDocs.seek(new Term(stats.fieldName, stats.terms[termId]));
+			int i = 0;
+			while (i < candidates.length && termDocs.skipTo(candidates[i])) {
+				int d = termDocs.doc();
+				while (i < candidates.length && candidates[i] < d)
+					++i;
+				if (i < candidates.length && candidates[i] == d) {
+					scores[d] += weight * correction(termId, termDocs.freq(), d);
+					++i;
+				}
+			}
+		}
+		termDocs.close();
+	}
+
+	/**
+	 * Change in score when train document d (containing the term tf times) is
+	 * scored against a test document containing the term, relative to the
+	 * default accounted for by base[d] and presenceGain[t]
+	 */
+	double correction(int termId, int tf, int d) {
+		double val = stats.estimate(termId, tf, stats.docLengths[d]);
+		return (val - FieldStatistics.complement(val)) - presenceGain[termId];
+	}
+
+	/**
+	 * @return largest correction of every term over the train documents,
+	 * negative infinity for terms without postings in them
+	 */
+	double[] maxCorrections() throws IOException {
+
+		double[] maxCorrections = new double[stats.numTerms()];
+		Arrays.fill(maxCorrections, Double.NEGATIVE_INFINITY);
+		if (minDoc < 0)
+			return maxCorrections;
+
+		TermEnum termEnum = trainIR.terms(new Term(stats.fieldName, ""));
+		TermDocs termDocs = trainIR.termDocs();
+		do {
+			Term t = termEnum.term();
+			if (t == null || !t.field().equals(stats.fieldName))
+				break;
+			int termId = stats.termId(t.text());
+			if (termId < 0)
+				continue;
+			termDocs.seek(termEnum);
+			if (!termDocs.skipTo(minDoc))
+				continue;
+			do {
+				int d = termDocs.doc();
+				if (d > maxDoc)
+					break;
+				if (!trainDocs.fastGet(d))
+					continue;
+				double correction = correction(termId, termDocs.freq(), d);
+				if (correction > maxCorrections[termId])
+					maxCorrections[termId] = correction;
+			} while (termDocs.next());
+		} while (termEnum.next());
+		termDocs.close();
+		termEnum.close();
+		return maxCorrections;
+	}
+
+	/**
+	 * Term ids (in stats) of every document of the test index for the given field.
+	 * Terms that do not occur in the training documents do not contribute to the score.
+	 */
+	static int[][] queryTerms(IndexReader testIR, FieldStatistics stats) throws IOException {
+		return queryTerms(testIR, stats, null);
+	}
+
+	/**
+	 * Term ids of the given documents of the test index, in the order of testDocs
+	 * @param testDocs sorted doc ids, null for all documents
+	 */
+	static int[][] queryTerms(IndexReader testIR, FieldStatistics stats, int[] testDocs) throws IOException {
+
+		int nTestDocs = (testDocs == null) ? testIR.maxDoc() : testDocs.length;
+		List<List<Integer>> docTerms = new ArrayList<List<Integer>>(nTestDocs);
+		for (int q = 0; q < nTestDocs; ++q)
+			docTerms.add(new ArrayList<Integer>());
+
+		TermEnum termEnum = testIR.terms(new Term(stats.fieldName, ""));
+		TermDocs termDocs = testIR.termDocs();
+		do {
+			Term t = termEnum.term();
+			if (t == null || !t.field().equals(stats.fieldName))
+				break;
+			int termId = stats.termId(t.text());
+			if (termId < 0)
+				continue;
+			termDocs.seek(termEnum);
+			while (termDocs.next()) {
+				int q = termDocs.doc();
+				if (testDocs != null) {
+					q = Arrays.binarySearch(testDocs, q);
+					if (q < 0)
+						continue;
+				}
+				docTerms.get(q).add(termId);
+			}
+		} while (termEnum.next());
+		termDocs.close();
+		termEnum.close();
+
+		int[][] queryTerms = new int[nTestDocs][];
+		for (int q = 0; q < nTestDocs; ++q) {
+			List<Integer> terms = docTerms.get(q);
+			queryTerms[q] = new int[terms.size()];
+			for (int i = 0; i < terms.size(); ++i)
+				queryTerms[q][i] = terms.get(i);
+		}
+		return queryTerms;
+	}
+
+	/**
+	 * @return the k highest scoring documents of docs, sorted by descending score
+	 */
+	static Score[] selectTopK(double[] scores, OpenBitSet docs, int k) {
+		PriorityQueue<Score> heap = new PriorityQueue<Score>(k + 1, Collections.reverseOrder(new DescendingScoreComp()));
+		for (int d = docs.nextSetBit(0); d >= 0; d = docs.nextSetBit(d + 1)) {
+			if (heap.size() == k && scores[d] <= heap.peek().score)
+				continue;
+			Score score = new Score();
+			score.docID = d;
+			score.score = scores[d];
+			heap.add(score);
+			if (heap.size() > k)
+				heap.poll();
+		}
+		Score[] topK = new Score[heap.size()];
+		for (int i = topK.length - 1; i >= 0; --i)
+			topK[i] = heap.poll();
+		return topK;
+	}
+}
@@ -0,0 +1,197 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Seeded sampling of documents stratified by the values of a label field.
+ *
+ * Strata are built from the postings of the label field, a document with
+ * several values belongs to the stratum of its rarest value. Every sample
+ * draws an exact number of documents per stratum with sequential selection
+ * sampling, so any number of samples is taken in one pass over the doc ids and
+ * no stored field is read.
+ */
+class StratifiedSampler {
+
+	String labelField;
+	// stratum values, the last one ("") for documents without a value
+	String[] labels;
+	// stratum of every document, -1 outside the population
+	int[] stratumOf;
+	int[] stratumSizes;
+
+	static class Sample {
+		int[] targets;
+		Random random;
+		OpenBitSet docs;
+		int[] seen;
+		int[] selected;
+
+		Sample(int[] targets, long seed) {
+			this.targets = targets;
+			this.random = new Random(seed);
+		}
+	}
+
+	/**
+	 * @param population documents that can be sampled, null for all undeleted documents
+	 */
+	StratifiedSampler(IndexReader ir, String labelField, OpenBitSet population) throws IOException {
+
+		this.labelField = labelField;
+		int maxDoc = ir.maxDoc();
+		stratumOf = new int[maxDoc];
+		for (int d = 0; d < maxDoc; ++d) {
+			boolean inPopulation = !ir.isDeleted(d) && (population == null || population.get(d));
+			stratumOf[d] = inPopulation ? Integer.MAX_VALUE : -1;
+		}
+
+		List<String> values = new ArrayList<String>();
+		List<Integer> docFreqs = new ArrayList<Integer>();
+		TermEnum termEnum = ir.terms(new Term(labelField, ""));
+		TermDocs termDocs = ir.termDocs();
+		do {
+			Term t = termEnum.term();
+			if (t == null || !t.field().equals(labelField))
+				break;
+			int docFreq = 0;
+			termDocs.seek(termEnum);
+			while (termDocs.next()) {
+				if (stratumOf[termDocs.doc()] >= 0)
+					docFreq++;
+			}
+			if (docFreq > 0) {
+				values.add(t.text());
+				docFreqs.add(docFreq);
+			}
+		} while (termEnum.next());
+		termEnum.close();
+
+		int numLabels = values.size();
+		for (int s = 0; s < numLabels; ++s) {
+			termDocs.seek(new Term(labelField, values.get(s)));
+			while (termDocs.next()) {
+				int d = termDocs.doc();
+				int current = stratumOf[d];
+				if (current < 0)
+					continue;
+				if (current == Integer.MAX_VALUE || docFreqs.get(s) < docFreqs.get(current))
+					stratumOf[d] = s;
+			}
+		}
+		termDocs.close();
+
+		labels = values.toArray(new String[numLabels + 1]);
+		labels[numLabels] = "";
+		stratumSizes = new int[numLabels + 1];
+		for (int d = 0; d < maxDoc; ++d) {
+			if (stratumOf[d] == Integer.MAX_VALUE)
+				stratumOf[d] = numLabels;
+			if (stratumOf[d] >= 0)
+				stratumSizes[stratumOf[d]]++;
+		}
+	}
+
+	int populationSize() {
+		int size = 0;
+		for (int n : stratumSizes)
+			size += n;
+		return size;
+	}
+
+	/**
+	 * Sample of size documents (or the whole population if smaller) with every
+	 * stratum in proportion to its size
+	 */
+	Sample proportional(int size, long seed) {
+		int total = populationSize();
+		size = Math.min(size, total);
+		int[] targets = new int[stratumSizes.length];
+		double[] remainders = new double[stratumSizes.length];
+		int assigned = 0;
+		for (int s = 0; s < stratumSizes.length; ++s) {
+			double exact = (total == 0) ? 0.0 : ((double)size) * stratumSizes[s] / total;
+			targets[s] = (int) Math.floor(exact);
+			remainders[s] = exact - targets[s];
+			assigned += targets[s];
+		}
+		// largest remainders get the documents lost to rounding
+		while (assigned < size) {
+			int best = -1;
+			for (int s = 0; s < stratumSizes.length; ++s) {
+				if (targets[s] < stratumSizes[s] && (best < 0 || remainders[s] > remainders[best]))
+					best = s;
+			}
+			targets[best]++;
+			remainders[best] = -1.0;
+			assigned++;
+		}
+		return new Sample(targets, seed);
+	}
+
+	/**
+	 * Sample keeping the given fraction of the strata named in rates and
+	 * defaultRate of all others
+	 */
+	Sample withRates(Map<String, Double> rates, double defaultRate, long seed) {
+		int[] targets = new int[stratumSizes.length];
+		for (int s = 0; s < stratumSizes.length; ++s) {
+			Double rate = rates.get(labels[s]);
+			double r = (rate == null) ? defaultRate : rate;
+			targets[s] = (int) Math.min(stratumSizes[s], Math.round(r * stratumSizes[s]));
+		}
+		return new Sample(targets, seed);
+	}
+
+	/**
+	 * Draw all samples in one pass over the doc ids
+	 */
+	void select(List<Sample> samples) {
+		int maxDoc = stratumOf.length;
+		for (Sample sample : samples) {
+			sample.docs = new OpenBitSet(maxDoc);
+			sample.seen = new int[stratumSizes.length];
+			sample.selected = new int[stratumSizes.length];
+		}
+		for (int d = 0; d < maxDoc; ++d) {
+			int s = stratumOf[d];
+			if (s < 0)
+				continue;
+			for (Sample sample : samples) {
+				int needed = sample.targets[s] - sample.selected[s];
+				int remaining = stratumSizes[s] - sample.seen[s];
+				sample.seen[s]++;
+				if (needed > 0 && sample.random.nextInt(remaining) < needed) {
+					sample.docs.fastSet(d);
+					sample.selected[s]++;
+				}
+			}
+		}
+	}
+
+	OpenBitSet select(Sample sample) {
+		select(Arrays.asList(sample));
+		return sample.docs;
+	}
+
+	String describe(Sample sample) {
+		StringBuilder description = new StringBuilder();
+		for (int s = 0; s < labels.length; ++s) {
+			if (s > 0)
+				description.append(", ");
+			description.append(labels[s].length() == 0 ? "(none)" : labels[s]).append("=").append(sample.targets[s]).append("/").append(stratumSizes[s]);
+		}
+		return description.toString();
+	}
+}
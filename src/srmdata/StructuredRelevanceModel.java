@@ -202,63 +202,122 @@ public class StructuredRelevanceModel {
 		int collectionSize = findCollectionSize(trainIR, fieldName, doc_lengths);
 
 		double[] mle = new double[trainIR.numDocs()];
-		double score[] = new double[2];
-		TermEnum terms = trainIR.terms();
-		while (terms.next()) {
+		SmoothingKernel kernel = new SmoothingKernel();
+		TermDocs trainTermDocs = trainIR.termDocs();
+		TermJoin termJoin = TermJoin.compute(trainIR, testIR, fieldName);
+		for (int termId = 0; termId < termJoin.numTerms(); ++termId) {
 
-			Term t = terms.term();
-			if (!t.field().equals(fieldName) || containsNumber(t.text()))
-				continue;
-
-			compute_mlestimate(trainIR, fieldName, t, doc_lengths, collectionSize, mle);
-			if (mle == null)
+			Term t = new Term(fieldName, termJoin.terms[termId]);
+			if (compute_mlestimate(trainTermDocs, t, doc_lengths, collectionSize, kernel, mle) == null)
 				continue;
 
-			int[] termDocsArr = new int[nTestDocs];
-			for (int i = 0; i < termDocsArr.length; ++i)
-				termDocsArr[i] = 1;
-			TermDocs termDocs = testIR.termDocs(t);
-			while (termDocs.next()) {
-				termDocsArr[termDocs.doc()] = 0;
-			}
-			termDocs.close();
-
 //			long t1 = System.nanoTime();
-			for (int md = 0; md < nTrainDocs; ++md) {
-				score[0] = mle[md];
-				score[1] = 1.0 - score[0];
-				for (int q = 0; q < nTestDocs; ++q) {
-					modelScores[md][q] *= score[termDocsArr[q]];
-				}
-			}
+			multiplyPriors(modelScores, mle, termJoin.testDocs[termId]);
 //			long t2 = System.nanoTime();
 //			System.out.println("Time Taken: " + (t2-t1)/1E6);
 		}
+		trainTermDocs.close();
 
-		terms.close();
 		return modelScores;
 	}
 
+	/**
+	 * Multiply every score by mle of its train document if the test document
+	 * contains the term, by 1 - mle otherwise
+	 * @param testDocs sorted test documents containing the term, may be null
+	 */
+	private static void multiplyPriors(double[][] modelScores, double[] mle, int[] testDocs) {
+		for (int md = 0; md < modelScores.length; ++md) {
+			double[] row = modelScores[md];
+			double present = mle[md];
+			double absent = 1.0 - present;
+			int q = 0;
+			if (testDocs != null) {
+				for (int match : testDocs) {
+					ScoreKernels.scale(row, q, match, absent);
+					row[match] *= present;
+					q = match + 1;
+				}
+			}
+			ScoreKernels.scale(row, q, row.length, absent);
+		}
+	}
+
+	/**
+	 * compute_mlestimate over the postings of a snapshot, every term of the
+	 * snapshot occurs in the training documents
+	 * @param cursor cursor over postings, reused across terms
+	 */
+	static double[] compute_mlestimate(PostingsSnapshot.FieldPostings postings, int termId,
+			PostingsSnapshot.PostingsCursor cursor, int[] doc_length, int collectionSize,
+			SmoothingKernel kernel, double[] mlEstimates) {
+
+		double collectionFreq = 0;
+		double pavg = 0.0;
+		double meanfreq = 0.0;
+		int count = 0;
+		cursor.seek(postings, termId);
+		while (cursor.next()) {
+			int tf = cursor.freq();
+			pavg = pavg + ((double)tf) / doc_length[cursor.doc()];
+			meanfreq = meanfreq + tf;
+			collectionFreq = collectionFreq + tf;
+			count++;
+		}
+		kernel.avgs[0] = pavg / count;
+		kernel.avgs[1] = meanfreq / count;
+		kernel.avgs[2] = collectionFreq;
+		kernel.setTerm(collectionSize);
+
+		for (int i = 0; i < mlEstimates.length; ++i) {
+			mlEstimates[i] = 0.0;
+		}
+
+		cursor.seek(postings, termId);
+		while (cursor.next()) {
+			int d = cursor.doc();
+			mlEstimates[d] = kernel.estimate(cursor.freq(), doc_length[d]);
+		}
+
+		for (int md = 0; md < mlEstimates.length; ++md) {
+			if (mlEstimates[md] == 0.0)
+				mlEstimates[md] = kernel.defaultEstimate;
+		}
+
+		return mlEstimates;
+	}
+
 	static double[] compute_mlestimate(IndexReader ir, String fieldName,
 			Term t, int[] doc_length, int collectionSize, double[] mlEstimates) throws Exception {
 
-		List<Double> avgs = compute_avgs(ir, fieldName, t, doc_length);
-		Double pavg = avgs.get(0);
-		Double meanfreq = avgs.get(1);
-		Double collectionFreq = avgs.get(2);
+		TermDocs termDocs = ir.termDocs();
+		try {
+			return compute_mlestimate(termDocs, t, doc_length, collectionSize, new SmoothingKernel(), mlEstimates);
+		}
+		finally {
+			termDocs.close();
+		}
+	}
 
-		if (collectionFreq == 0.0) {
+	/**
+	 * compute_mlestimate without allocation, for loops over many terms
+	 * @param termDocs reused across terms
+	 * @param kernel per-term state, reused across terms
+	 */
+	static double[] compute_mlestimate(TermDocs termDocs, Term t, int[] doc_length, int collectionSize,
+			SmoothingKernel kernel, double[] mlEstimates) throws IOException {
+
+		compute_avgs(termDocs, t, doc_length, kernel.avgs);
+		if (kernel.avgs[2] == 0.0) {
 			return null;
 		}
+		kernel.setTerm(collectionSize);
 
 		for (int i = 0; i < mlEstimates.length; ++i) {
 			mlEstimates[i] = 0.0;
 		}
 
-		pavg = Math.log10(pavg);
-		double term1 = meanfreq / (1.0 + meanfreq);
-		double term2 = 1.0 / (1.0 + meanfreq);
-		TermDocs termDocs = ir.termDocs(t);
+		termDocs.seek(t);
 		while (termDocs.next()) {
 			int d = termDocs.doc();
 			int tf = termDocs.freq();
@@ -266,17 +325,12 @@ public class StructuredRelevanceModel {
 				mlEstimates[d] = 0.0;
 				continue;
 			}
-			double R = term2 * Math.pow(term1,tf);
-			double pml = Math.log10( ((double)tf)/doc_length[d] );
-			double val = (1.0-R)*pml + R*pavg;
-			mlEstimates[d] = val;
+			mlEstimates[d] = kernel.estimate(tf, doc_length[d]);
 		}
-		termDocs.close();
 
-		double defaultVal = Math.log10((double)collectionFreq/collectionSize);
-		for (int md = 0; md < ir.maxDoc(); ++md) {
+		for (int md = 0; md < mlEstimates.length; ++md) {
 			if (mlEstimates[md] == 0.0)
-				mlEstimates[md] = defaultVal;
+				mlEstimates[md] = kernel.defaultEstimate;
 		}
 
 		return mlEstimates;
@@ -285,12 +339,24 @@ public class StructuredRelevanceModel {
 	static List<Double> compute_avgs(IndexReader ir, String fieldName,
 			Term t, int[] doc_length) throws Exception {
 
+		double[] avgs = new double[3];
+		TermDocs termDocs = ir.termDocs();
+		compute_avgs(termDocs, t, doc_length, avgs);
+		termDocs.close();
+		return Arrays.asList(avgs[0], avgs[1], avgs[2]);
+	}
+
+	/**
+	 * @param avgs receives pavg, meanfreq and collectionFreq of the term
+	 */
+	static void compute_avgs(TermDocs termDocs, Term t, int[] doc_length, double[] avgs) throws IOException {
+
 		double collectionFreq = 0;
 		double pavg = 0.0;
 		double meanfreq = 0.0;
 
 		int count = 0;
-		TermDocs termDocs = ir.termDocs(t);
+		termDocs.seek(t);
 		while (termDocs.next()) {
 			int d = termDocs.doc();
 			int tf = termDocs.freq();
@@ -300,7 +366,6 @@ public class StructuredRelevanceModel {
 			collectionFreq = collectionFreq + tf;
 			count++;
 		}
-		termDocs.close();
 
 		if (count == 0) {
 			pavg = 0.0;
@@ -310,7 +375,9 @@ public class StructuredRelevanceModel {
 			pavg = pavg / count;
 			meanfreq = meanfreq / count;
 		}
-		return Arrays.asList(pavg, meanfreq, collectionFreq);
+		avgs[0] = pavg;
+		avgs[1] = meanfreq;
+		avgs[2] = collectionFreq;
 	}
 
 	/**
@@ -322,20 +389,23 @@ public class StructuredRelevanceModel {
 	 */
 	static Integer findCollectionSize(IndexReader ir, String fieldName, int[] doc_lengths) throws IOException {
 		int collectionSize = 0;
-		TermEnum terms = ir.terms();
-		while (terms.next()) {
+		TermEnum terms = ir.terms(new Term(fieldName, ""));
+		TermDocs termDocs = ir.termDocs();
+		do {
 			Term t = terms.term();
-			if (!t.field().equals(fieldName) || containsNumber(t.text()))
+			if (t == null || !t.field().equals(fieldName))
+				break;
+			if (containsNumber(t.text()))
 				continue;
-			TermDocs termDocs = ir.termDocs(t);
+			termDocs.seek(terms);
 			while (termDocs.next()) {
 				int tf = termDocs.freq();
 				collectionSize += tf;
 				int docID = termDocs.doc();
 				doc_lengths[docID] += tf;
 			}
-			termDocs.close();
-		}
+		} while (terms.next());
+		termDocs.close();
 		terms.close();
 		return collectionSize;
 	}
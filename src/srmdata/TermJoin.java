@@ -0,0 +1,84 @@
+package srmdata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * The terms of one field of a training index, numbered densely in index order,
+ * joined with the test documents containing each of them. Both term
+ * dictionaries are walked once from the start of the field, so scoring needs no
+ * per-term seek in the test index.
+ */
+class TermJoin {
+
+	String fieldName;
+	// train terms without digits, in index order, the term id is the position
+	String[] terms;
+	// test documents containing every term, in increasing order, null for terms not in the test set
+	int[][] testDocs;
+	int numShared;
+
+	int numTerms() {
+		return terms.length;
+	}
+
+	static TermJoin compute(IndexReader trainIR, IndexReader testIR, String fieldName) throws IOException {
+		List<String> trainTerms = new ArrayList<String>();
+		TermEnum termEnum = trainIR.terms(new Term(fieldName, ""));
+		do {
+			Term t = termEnum.term();
+			if (t == null || !t.field().equals(fieldName))
+				break;
+			if (!StructuredRelevanceModel.containsNumber(t.text()))
+				trainTerms.add(t.text());
+		} while (termEnum.next());
+		termEnum.close();
+		return compute(trainTerms.toArray(new String[trainTerms.size()]), testIR, fieldName);
+	}
+
+	/**
+	 * @param trainTerms sorted in index order
+	 */
+	static TermJoin compute(String[] trainTerms, IndexReader testIR, String fieldName) throws IOException {
+
+		TermJoin join = new TermJoin();
+		join.fieldName = fieldName;
+		join.terms = trainTerms;
+		join.testDocs = new int[trainTerms.length][];
+
+		int[] docs = new int[testIR.maxDoc()];
+		TermEnum termEnum = testIR.terms(new Term(fieldName, ""));
+		TermDocs termDocs = testIR.termDocs();
+		int i = 0;
+		do {
+			Term t = termEnum.term();
+			if (t == null || !t.field().equals(fieldName))
+				break;
+			String text = t.text();
+			while (i < trainTerms.length && trainTerms[i].compareTo(text) < 0)
+				++i;
+			if (i == trainTerms.length)
+				break;
+			if (!trainTerms[i].equals(text))
+				continue;
+			termDocs.seek(termEnum);
+			int n = 0;
+			while (termDocs.next())
+				docs[n++] = termDocs.doc();
+			if (n > 0) {
+				join.testDocs[i] = new int[n];
+				System.arraycopy(docs, 0, join.testDocs[i], 0, n);
+				join.numShared++;
+			}
+		} while (termEnum.next());
+		termDocs.close();
+		termEnum.close();
+		return join;
+	}
+}